@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data and templates shared by the benchmarks.<br/>
+ * The small fixtures are in src/test/resources/bench. Larger ones are
+ * generated from them in to build/bench.
+ */
+public final class BenchmarkFixtures {
+
+    public static final String DIR = "src/test/resources/bench/";
+    public static final String GENERATED_DIR = "build/bench/";
+    public static final String SMALL = DIR + "bench_small.txt";
+    public static final String REPEAT = DIR + "bench_repeat.txt";
+    public static final String NEST = DIR + "bench_nest_0.txt";
+    public static final String BUNDLE = DIR + "bench_bundle.txt";
+    public static final String ROW_NAME = "bench_row.txt";
+    public static final String REPEAT_HTML = DIR + "bench_repeat_html.txt";
+    public static final String ROW_HTML_NAME = "bench_row_html.txt";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * @return Data for bench_small.txt (and the nest and bundle templates)
+     */
+    public static Map<String, Object> cardData() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("title", "Account summary");
+        data.put("name", "Jo Bloggs");
+        data.put("id", 1234567);
+        data.put("email", "jo.bloggs@example.com");
+        data.put("total", new BigDecimal("1234.56"));
+        data.put("currency", "GBP");
+        data.put("vip", Boolean.TRUE);
+        data.put("since", 2009);
+        data.put("updated", "2018-07-01 12:00:00");
+        return data;
+    }
+
+    /**
+     * @param rows The number of rows for bench_repeat.txt
+     * @return Data for bench_repeat.txt
+     */
+    public static Map<String, Object> repeatData(int rows) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("title", "Order lines");
+        List<Map<String, Object>> list = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("rowNum", i + 1);
+            row.put("item", "Item number " + i);
+            row.put("qty", i % 7);
+            row.put("price", 1.5 * i);
+            if (i % 10 == 0) {
+                row.put("note", "Every tenth row has a note");
+            }
+            list.add(row);
+        }
+        data.put(ROW_NAME, list);
+        return data;
+    }
+
+    /**
+     * Generate a large template by repeating bench_small.txt.
+     *
+     * @param copies How many copies of bench_small.txt
+     * @return The file name of the generated template
+     * @throws IOException
+     */
+    public static String largeTemplate(int copies) throws IOException {
+        byte[] small = Files.readAllBytes(new File(SMALL).toPath());
+        File file = new File(GENERATED_DIR, "bench_large_" + copies + ".txt");
+        file.getParentFile().mkdirs();
+        StringBuilder sb = new StringBuilder();
+        String text = new String(small, StandardCharsets.UTF_8);
+        for (int i = 0; i < copies; i++) {
+            sb.append(text);
+        }
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    /**
+     * Generate a template of feature flagged sections. Each section is an
+     * ifDef#feature_n block holding a copy of bench_small.txt with a nested
+     * ifUnDef# block.
+     *
+     * @param sections How many sections
+     * @return The file name of the generated template
+     * @throws IOException
+     */
+    public static String flaggedTemplate(int sections) throws IOException {
+        String text = smallText();
+        File file = new File(GENERATED_DIR, "bench_flagged_" + sections + ".txt");
+        file.getParentFile().mkdirs();
+        StringBuilder sb = new StringBuilder("Flags for %{name}\n");
+        for (int i = 0; i < sections; i++) {
+            sb.append("%{ifDef#feature_").append(i).append('}').append(text)
+                    .append("%{ifUnDef#vip}Not a VIP%{fi#}%{fi#}");
+        }
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    /**
+     * @return The content of bench_small.txt as a String for the static parse
+     * @throws IOException
+     */
+    public static String smallText() throws IOException {
+        return new String(Files.readAllBytes(new File(SMALL).toPath()), StandardCharsets.UTF_8);
+    }
+}
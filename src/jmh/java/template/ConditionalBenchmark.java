@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A template of 100 feature flagged sections (see
+ * BenchmarkFixtures.flaggedTemplate()) with all of the flags off and with one
+ * in ten on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConditionalBenchmark {
+
+    private Template flagged;
+    private Map<String, Object> allOff;
+    private Map<String, Object> someOn;
+
+    @Setup
+    public void setup() throws IOException {
+        flagged = new Template(BenchmarkFixtures.flaggedTemplate(100));
+        allOff = BenchmarkFixtures.cardData();
+        someOn = BenchmarkFixtures.cardData();
+        for (int i = 0; i < 100; i += 10) {
+            someOn.put("feature_" + i, Boolean.TRUE);
+        }
+    }
+
+    @Benchmark
+    public String allOff() {
+        return flagged.parse(allOff);
+    }
+
+    @Benchmark
+    public String someOn() {
+        return flagged.parse(someOn);
+    }
+}
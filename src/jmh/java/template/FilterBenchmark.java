@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HTML escaping of a repeat# over 1000 rows. preEscaped copies the data with
+ * every String value escaped (the way it was done before filters) and parses
+ * bench_repeat.txt. filtered parses bench_repeat_html.txt which uses
+ * %{name|html} so the values are escaped as they are written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    private Template plain;
+    private Template filtered;
+    private Map<String, Object> data;
+    private Map<String, Object> filteredData;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        plain = new Template(BenchmarkFixtures.REPEAT);
+        filtered = new Template(BenchmarkFixtures.REPEAT_HTML);
+        data = BenchmarkFixtures.repeatData(1000);
+        data.put("title", "Orders for \"Jo\" & Sons");
+        for (Object row : (List) data.get(BenchmarkFixtures.ROW_NAME)) {
+            Map<String, Object> m = (Map<String, Object>) row;
+            m.put("item", "Fish & Chips <" + m.get("item") + ">");
+        }
+        filteredData = new HashMap<>(data);
+        filteredData.put(BenchmarkFixtures.ROW_HTML_NAME, filteredData.remove(BenchmarkFixtures.ROW_NAME));
+    }
+
+    @Benchmark
+    public String preEscaped() {
+        return plain.parse(escape(data));
+    }
+
+    @Benchmark
+    public String filtered() {
+        return filtered.parse(filteredData);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> escape(Map<String, Object> map) {
+        Map<String, Object> escaped = new HashMap<>();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof List) {
+                List<Map<String, Object>> rows = new ArrayList<>();
+                for (Object row : (List) value) {
+                    rows.add(escape((Map<String, Object>) row));
+                }
+                escaped.put(entry.getKey(), rows);
+            } else if (value instanceof String) {
+                escaped.put(entry.getKey(), escape((String) value));
+            } else {
+                escaped.put(entry.getKey(), value);
+            }
+        }
+        return escaped;
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                case '\'':
+                    sb.append("&#39;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
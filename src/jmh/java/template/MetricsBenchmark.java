@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of leaving metrics on: no metrics (false) against a
+ * DefaultTemplateMetrics (true, see Template.setMetrics()). Each value runs in
+ * its own fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private Template small;
+    private Template large;
+    private Template repeat;
+    private Map<String, Object> cardData;
+    private Map<String, Object> repeatData;
+
+    @Setup
+    public void setup() throws IOException {
+        TemplateCache.getInstance().clear();
+        Template.setMetrics(metrics ? new DefaultTemplateMetrics() : null);
+        small = new Template(BenchmarkFixtures.SMALL);
+        large = new Template(BenchmarkFixtures.largeTemplate(500));
+        repeat = new Template(BenchmarkFixtures.REPEAT);
+        cardData = BenchmarkFixtures.cardData();
+        repeatData = BenchmarkFixtures.repeatData(1000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Template.setMetrics(null);
+    }
+
+    @Benchmark
+    public String small() {
+        return small.parse(cardData);
+    }
+
+    @Benchmark
+    public String large() {
+        return large.parse(cardData);
+    }
+
+    @Benchmark
+    public String repeat() {
+        return repeat.parse(repeatData);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * repeat# over 10, 1k and 100k rows. Sequential and in parallel on the common
+ * ForkJoinPool (lists of 1000 rows or more).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepeatBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int rows;
+
+    private Template template;
+    private Template parallel;
+    private Map<String, Object> data;
+
+    @Setup
+    public void setup() {
+        template = new Template(BenchmarkFixtures.REPEAT);
+        parallel = new Template(BenchmarkFixtures.REPEAT);
+        parallel.setParallelRepeat(1000);
+        data = BenchmarkFixtures.repeatData(rows);
+    }
+
+    @Benchmark
+    public String repeat() {
+        return template.parse(data);
+    }
+
+    @Benchmark
+    public String repeatParallel() {
+        return parallel.parse(data);
+    }
+}
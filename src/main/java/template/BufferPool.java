@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small bounded pool of render buffers shared by all threads.<br/>
+ * A parse takes the smallest free buffer that is big enough and gives it back
+ * when the result has been copied out. This avoids allocating (and growing) a
+ * new buffer for every parse.<br/>
+ * The pool is not per thread so it works the same for platform and virtual
+ * threads. It never blocks. If no buffer is free a new one is allocated and if
+ * the pool is full a returned buffer is dropped.<br/>
+ * acquire() and release() use the pool shared by all templates. A pool of its
+ * own (for a test) can be made with the constructor.
+ *
+ * @version $Rev: $ $Date: $
+ */
+final class BufferPool {
+
+    /**
+     * Bigger buffers are not kept.
+     */
+    static final int MAX_POOLED_SIZE = 1 << 20;
+    private static final BufferPool SHARED = new BufferPool(Math.min(32, Math.max(4, Runtime.getRuntime().availableProcessors() * 2)));
+    private final AtomicReferenceArray<byte[]> slots;
+
+    /**
+     * @param size The most buffers kept
+     */
+    BufferPool(int size) {
+        this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * @param size The minimum size
+     * @return A buffer from the shared pool or a new one
+     */
+    static byte[] acquire(int size) {
+        return SHARED.take(size);
+    }
+
+    /**
+     * @param buf A buffer that is no longer used. It is kept in the shared
+     * pool if there is room
+     */
+    static void release(byte[] buf) {
+        SHARED.give(buf);
+    }
+
+    /**
+     * @param size The minimum size
+     * @return A pooled buffer or a new one
+     */
+    byte[] take(int size) {
+        int best = -1;
+        byte[] bestBuf = null;
+        for (int i = 0; i < slots.length(); i++) {
+            byte[] b = slots.get(i);
+            if ((b != null) && (b.length >= size) && ((bestBuf == null) || (b.length < bestBuf.length))) {
+                best = i;
+                bestBuf = b;
+            }
+        }
+        if ((bestBuf != null) && slots.compareAndSet(best, bestBuf, null)) {
+            return bestBuf;
+        }
+        return new byte[size];
+    }
+
+    /**
+     * @param buf A buffer that is no longer used
+     */
+    void give(byte[] buf) {
+        if ((buf == null) || (buf.length > MAX_POOLED_SIZE)) {
+            return;
+        }
+        for (int i = 0; i < slots.length(); i++) {
+            if ((slots.get(i) == null) && slots.compareAndSet(i, null, buf)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process wide cache of the bundles loaded by <b>bundle#</b> and
+ * <b>bundle?</b>.<br/>
+ * Bundles are keyed by their resolved location and held as immutable,
+ * pre-parsed maps so after the first load a bundle costs nothing, even in a
+ * <b>repeat#</b> template.<br/>
+ * Bundles loaded from files are re-validated at most once every
+ * <b>checkInterval</b> milliseconds. If the file modification time or size has
+ * changed the bundle is re-loaded. A checkInterval of 0 checks on every use
+ * and a negative checkInterval never checks. Classpath and URL bundles are
+ * never re-validated, use remove() or clear().<br/>
+ * Bundle files can also be re-loaded as soon as they change by a
+ * {@link TemplateWatcher}.
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class BundleCache {
+
+    public static final long DEFAULT_CHECK_INTERVAL = 2000;
+    private static final BundleCache INSTANCE = new BundleCache();
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+    private BundleCache() {
+    }
+
+    public static BundleCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a bundle from the cache. If not cached (or the file has changed)
+     * then load it.
+     *
+     * @param location The resolved location of the bundle
+     * @param file The bundle file. null if loaded from the classpath or a URL
+     * @param loader Loads and parses the bundle
+     * @return The name value pairs
+     */
+    Map<String, String> get(String location, File file, Supplier<Map<String, String>> loader) {
+        Entry entry = entries.get(location);
+        if (entry != null) {
+            if ((entry.file == null) || !entry.isStale(checkInterval)) {
+                hits.increment();
+                return entry.values;
+            }
+            reloads.increment();
+        } else {
+            misses.increment();
+        }
+        /*
+        Read the modification time and size BEFORE loading so a change made
+        during the load is seen next time.
+         */
+        long modified = (file == null) ? 0 : file.lastModified();
+        long length = (file == null) ? 0 : file.length();
+        long start = System.nanoTime();
+        Map<String, String> values = loader.get();
+        loaded(location, start);
+        if (entries.put(location, new Entry(values, file, modified, length)) == null) {
+            TemplateWatcher.getInstance().watch(location);
+        }
+        return values;
+    }
+
+    /**
+     * Re-load a cached bundle file now (see {@link TemplateWatcher}).
+     *
+     * @param location The resolved location of the bundle
+     * @return false if the bundle is not cached or is not from a file
+     * @throws IOException If the file cannot be read. The cached version is
+     * kept
+     */
+    boolean reload(String location) throws IOException {
+        Entry entry = entries.get(location);
+        if ((entry == null) || (entry.file == null)) {
+            return false;
+        }
+        long modified = entry.file.lastModified();
+        long length = entry.file.length();
+        long start = System.nanoTime();
+        Map<String, String> values;
+        try (InputStream in = new FileInputStream(entry.file)) {
+            values = read(in);
+        }
+        entries.put(location, new Entry(values, entry.file, modified, length));
+        reloads.increment();
+        loaded(location, start);
+        return true;
+    }
+
+    private static void loaded(String location, long start) {
+        TemplateMetrics m = Template.getMetrics();
+        if (m != null) {
+            m.bundleLoaded(location, System.nanoTime() - start);
+        }
+    }
+
+    Set<String> locations() {
+        return entries.keySet();
+    }
+
+    /**
+     * Parse a bundle in to an immutable map.
+     *
+     * @param in The properties file content
+     * @return The name value pairs
+     * @throws IOException
+     */
+    static Map<String, String> read(InputStream in) throws IOException {
+        Properties p = new Properties();
+        p.load(in);
+        Map<String, String> values = new HashMap<>();
+        for (String name : p.stringPropertyNames()) {
+            values.put(name, p.getProperty(name));
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * @param checkInterval Milliseconds between checks for a changed bundle
+     * file. 0 to check every time, negative to never check
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getReloads() {
+        return reloads.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void remove(String location) {
+        entries.remove(location);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "BundleCache:size=" + size() + " hits=" + getHits() + " misses=" + getMisses() + " reloads=" + getReloads();
+    }
+
+    private static final class Entry {
+
+        private final Map<String, String> values;
+        private final File file;
+        private final long modified;
+        private final long length;
+        private volatile long checked;
+
+        private Entry(Map<String, String> values, File file, long modified, long length) {
+            this.values = values;
+            this.file = file;
+            this.modified = modified;
+            this.length = length;
+            this.checked = System.nanoTime();
+        }
+
+        /*
+        Only one stat of the file per interval. A race between two threads
+        may cause an extra stat, never a missed change.
+         */
+        private boolean isStale(long interval) {
+            if (interval < 0) {
+                return false;
+            }
+            long now = System.nanoTime();
+            if ((now - checked) < TimeUnit.MILLISECONDS.toNanos(interval)) {
+                return false;
+            }
+            checked = now;
+            return (file.lastModified() != modified) || (file.length() != length);
+        }
+    }
+}
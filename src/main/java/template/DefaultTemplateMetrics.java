@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free {@link TemplateMetrics} that counts everything per template (and
+ * per bundle) in LongAdders. Cheap enough to leave on in production: a render
+ * costs two System.nanoTime() calls, one map lookup and a few uncontended
+ * adds.<br/>
+ * Render times are counted in a histogram with power of 2 buckets. Bucket 0
+ * holds renders under 1024ns, bucket i renders under 2^(i+10)ns. The last
+ * bucket holds everything slower.<br/>
+ * snapshot() copies the counts (and the {@link TemplateCache} and
+ * {@link BundleCache} hit counts) for scraping. Counting continues while the
+ * copy is taken so the counts of one template may be a few renders apart.
+ * <br/>
+ * <code>
+ * DefaultTemplateMetrics metrics = new DefaultTemplateMetrics();<br/>
+ * Template.setMetrics(metrics);<br/>
+ * ...<br/>
+ * DefaultTemplateMetrics.Snapshot s = metrics.snapshot();
+ * </code>
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class DefaultTemplateMetrics implements TemplateMetrics {
+
+    public static final int LATENCY_BUCKETS = 32;
+    private static final int FIRST_BUCKET_BITS = 10;
+
+    private final ConcurrentHashMap<String, Counters> templates = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LoadCounters> bundles = new ConcurrentHashMap<>();
+
+    @Override
+    public void rendered(String location, long nanos, long size) {
+        Counters c = counters(location);
+        c.renders.increment();
+        c.nanos.add(nanos);
+        c.size.add(size);
+        c.latency[bucket(nanos)].increment();
+    }
+
+    @Override
+    public void included(String location, String included) {
+        counters(location).includes.increment();
+    }
+
+    @Override
+    public void repeated(String location, String repeated, int rows) {
+        Counters c = counters(location);
+        c.repeats.increment();
+        c.repeatRows.add(rows);
+        c.maxRepeatRows.accumulate(rows);
+    }
+
+    @Override
+    public void templateLoaded(String location, long nanos) {
+        Counters c = counters(location);
+        c.loads.increment();
+        c.loadNanos.add(nanos);
+    }
+
+    @Override
+    public void bundleLoaded(String location, long nanos) {
+        LoadCounters c = bundles.get(location);
+        if (c == null) {
+            c = bundles.computeIfAbsent(location, k -> new LoadCounters());
+        }
+        c.loads.increment();
+        c.loadNanos.add(nanos);
+    }
+
+    @Override
+    public void unresolved(String location, String name) {
+        counters(location).unresolved.increment();
+    }
+
+    /**
+     * @return A copy of all of the counts as they are now
+     */
+    public Snapshot snapshot() {
+        Map<String, TemplateStats> t = new TreeMap<>();
+        for (Map.Entry<String, Counters> e : templates.entrySet()) {
+            t.put(e.getKey(), new TemplateStats(e.getValue()));
+        }
+        Map<String, LoadStats> b = new TreeMap<>();
+        for (Map.Entry<String, LoadCounters> e : bundles.entrySet()) {
+            b.put(e.getKey(), new LoadStats(e.getValue()));
+        }
+        return new Snapshot(t, b);
+    }
+
+    /**
+     * Forget all of the counts. The cache hit counts are not changed.
+     */
+    public void clear() {
+        templates.clear();
+        bundles.clear();
+    }
+
+    /**
+     * @param bucket A latency bucket
+     * @return The (exclusive) upper limit of the bucket in nanoseconds.
+     * Long.MAX_VALUE for the last bucket
+     */
+    public static long getBucketLimit(int bucket) {
+        if (bucket >= LATENCY_BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1L << (bucket + FIRST_BUCKET_BITS);
+    }
+
+    static int bucket(long nanos) {
+        int bits = 64 - Long.numberOfLeadingZeros(nanos);
+        if (bits <= FIRST_BUCKET_BITS) {
+            return 0;
+        }
+        return Math.min(bits - FIRST_BUCKET_BITS, LATENCY_BUCKETS - 1);
+    }
+
+    /*
+    Only the first render of a template takes the lock in computeIfAbsent.
+     */
+    private Counters counters(String location) {
+        Counters c = templates.get(location);
+        if (c == null) {
+            c = templates.computeIfAbsent(location, k -> new Counters());
+        }
+        return c;
+    }
+
+    private static class LoadCounters {
+
+        final LongAdder loads = new LongAdder();
+        final LongAdder loadNanos = new LongAdder();
+    }
+
+    private static final class Counters extends LoadCounters {
+
+        final LongAdder renders = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder size = new LongAdder();
+        final LongAdder includes = new LongAdder();
+        final LongAdder repeats = new LongAdder();
+        final LongAdder repeatRows = new LongAdder();
+        final LongAccumulator maxRepeatRows = new LongAccumulator(Math::max, 0);
+        final LongAdder unresolved = new LongAdder();
+        final LongAdder[] latency = new LongAdder[LATENCY_BUCKETS];
+
+        private Counters() {
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * The load counts of a bundle (or template).
+     */
+    public static class LoadStats {
+
+        private final long loads;
+        private final long loadNanos;
+
+        private LoadStats(LoadCounters c) {
+            this.loads = c.loads.sum();
+            this.loadNanos = c.loadNanos.sum();
+        }
+
+        /**
+         * @return Cache misses and re-loads
+         */
+        public long getLoads() {
+            return loads;
+        }
+
+        public long getLoadNanos() {
+            return loadNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "loads=" + loads + " loadNanos=" + loadNanos;
+        }
+    }
+
+    /**
+     * The counts of a template.
+     */
+    public static final class TemplateStats extends LoadStats {
+
+        private final long renders;
+        private final long nanos;
+        private final long size;
+        private final long includes;
+        private final long repeats;
+        private final long repeatRows;
+        private final long maxRepeatRows;
+        private final long unresolved;
+        private final long[] latency;
+
+        private TemplateStats(Counters c) {
+            super(c);
+            this.renders = c.renders.sum();
+            this.nanos = c.nanos.sum();
+            this.size = c.size.sum();
+            this.includes = c.includes.sum();
+            this.repeats = c.repeats.sum();
+            this.repeatRows = c.repeatRows.sum();
+            this.maxRepeatRows = c.maxRepeatRows.get();
+            this.unresolved = c.unresolved.sum();
+            this.latency = new long[LATENCY_BUCKETS];
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = c.latency[i].sum();
+            }
+        }
+
+        /**
+         * @return Parses and renders, including the times this template was
+         * included or rendered as a repeat# row. Each time includes the
+         * templates it includes (see TemplateMetrics.rendered())
+         */
+        public long getRenders() {
+            return renders;
+        }
+
+        public long getTotalNanos() {
+            return nanos;
+        }
+
+        public long getMeanNanos() {
+            return (renders == 0) ? 0 : nanos / renders;
+        }
+
+        /**
+         * @return Bytes (chars for an Appendable) written by all renders
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return template# and template? includes done by this template
+         */
+        public long getIncludes() {
+            return includes;
+        }
+
+        /**
+         * @return repeat# lists rendered by this template
+         */
+        public long getRepeats() {
+            return repeats;
+        }
+
+        /**
+         * @return The rows of all of the repeat# lists
+         */
+        public long getRepeatRows() {
+            return repeatRows;
+        }
+
+        public long getMaxRepeatRows() {
+            return maxRepeatRows;
+        }
+
+        /**
+         * @return Values that could not be found
+         */
+        public long getUnresolved() {
+            return unresolved;
+        }
+
+        /**
+         * @return The number of renders in each bucket (see getBucketLimit())
+         */
+        public long[] getLatencyBuckets() {
+            return latency.clone();
+        }
+
+        /**
+         * @param percentile 0.0 to 100.0
+         * @return The upper limit of the bucket holding the render at the
+         * percentile. 0 if there are no renders
+         */
+        public long getLatencyPercentile(double percentile) {
+            long total = 0;
+            for (long count : latency) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < latency.length; i++) {
+                seen += latency[i];
+                if ((seen >= rank) && (seen > 0)) {
+                    return getBucketLimit(i);
+                }
+            }
+            return getBucketLimit(LATENCY_BUCKETS - 1);
+        }
+
+        @Override
+        public String toString() {
+            return "renders=" + renders + " meanNanos=" + getMeanNanos() + " p99Nanos=" + getLatencyPercentile(99)
+                    + " size=" + size + " includes=" + includes + " repeats=" + repeats + " repeatRows=" + repeatRows
+                    + " unresolved=" + unresolved + " " + super.toString();
+        }
+    }
+
+    /**
+     * All of the counts at one time.
+     */
+    public static final class Snapshot {
+
+        private final long time;
+        private final Map<String, TemplateStats> templates;
+        private final Map<String, LoadStats> bundles;
+        private final long templateCacheHits;
+        private final long templateCacheMisses;
+        private final long bundleCacheHits;
+        private final long bundleCacheMisses;
+
+        private Snapshot(Map<String, TemplateStats> templates, Map<String, LoadStats> bundles) {
+            this.time = System.currentTimeMillis();
+            this.templates = Collections.unmodifiableMap(templates);
+            this.bundles = Collections.unmodifiableMap(bundles);
+            this.templateCacheHits = TemplateCache.getInstance().getHits();
+            this.templateCacheMisses = TemplateCache.getInstance().getMisses();
+            this.bundleCacheHits = BundleCache.getInstance().getHits();
+            this.bundleCacheMisses = BundleCache.getInstance().getMisses();
+        }
+
+        /**
+         * @return When the snapshot was taken (System.currentTimeMillis())
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return The counts of each template by location (sorted)
+         */
+        public Map<String, TemplateStats> getTemplates() {
+            return templates;
+        }
+
+        /**
+         * @return The counts of each bundle by location (sorted)
+         */
+        public Map<String, LoadStats> getBundles() {
+            return bundles;
+        }
+
+        public long getTemplateCacheHits() {
+            return templateCacheHits;
+        }
+
+        public long getTemplateCacheMisses() {
+            return templateCacheMisses;
+        }
+
+        public double getTemplateCacheHitRate() {
+            return hitRate(templateCacheHits, templateCacheMisses);
+        }
+
+        public long getBundleCacheHits() {
+            return bundleCacheHits;
+        }
+
+        public long getBundleCacheMisses() {
+            return bundleCacheMisses;
+        }
+
+        public double getBundleCacheHitRate() {
+            return hitRate(bundleCacheHits, bundleCacheMisses);
+        }
+
+        private static double hitRate(long hits, long misses) {
+            long total = hits + misses;
+            return (total == 0) ? 0.0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Snapshot:time=").append(time)
+                    .append(" templateCacheHitRate=").append(getTemplateCacheHitRate())
+                    .append(" bundleCacheHitRate=").append(getBundleCacheHitRate());
+            for (Map.Entry<String, TemplateStats> e : templates.entrySet()) {
+                sb.append('\n').append(e.getKey()).append(' ').append(e.getValue());
+            }
+            for (Map.Entry<String, LoadStats> e : bundles.entrySet()) {
+                sb.append('\n').append(e.getKey()).append(' ').append(e.getValue());
+            }
+            return sb.toString();
+        }
+    }
+}
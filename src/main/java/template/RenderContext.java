@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * The state of a single parse of a single template.<br/>
+ * A new context is created for each call to parse/render and for each
+ * included template. This keeps Template instances free of mutable state so
+ * they can be shared between threads.<br/>
+ * The parent link gives included templates access to the bundles loaded by
+ * the templates that included them and passes on the render options.
+ *
+ * @version $Rev: $ $Date: $
+ */
+final class RenderContext {
+
+    private final RenderContext parent;
+    final boolean ignoreUnresolvedSubs;
+    final int parallelThreshold;
+    final ForkJoinPool parallelPool;
+    final Executor executor;
+    /*
+    True once it is known that no template rendered with this context (or its
+    children) changes the data. Included templates can then be rendered
+    concurrently.
+     */
+    boolean independent;
+    /*
+    The ifDef#/ifUnDef# stack without the boxing. Once a block is not
+    included every block inside it is also not included so the stack is
+    always some trues (pushed while appending) then some falses. Only the
+    counts are kept.
+     */
+    private boolean appendToTemplate = true;
+    private int suspendDepth;
+    private int suspendedDepth;
+    private Map<String, String> bundle;
+    /*
+    The template's getAditionalData(). Fetched once per parse.
+     */
+    Map additional;
+    /*
+    Where the time is added when profiling (see Template.profile()). null
+    when not profiling.
+     */
+    TemplateProfile.Node profile;
+    /*
+    The values of the Suppliers used so far. Shared by all of the contexts of
+    a parse.
+     */
+    private final LazyValues lazyValues;
+
+    RenderContext(boolean ignoreUnresolvedSubs) {
+        this(ignoreUnresolvedSubs, 0, null, null);
+    }
+
+    /**
+     * @param ignoreUnresolvedSubs True to leave values that cannot be resolved
+     * as they are
+     * @param parallelThreshold Render repeat# lists with at least this many
+     * rows in parallel. 0 for never
+     * @param parallelPool Where parallel repeat# rows are rendered
+     * @param executor Where included templates are rendered concurrently. null
+     * to render them in line
+     */
+    RenderContext(boolean ignoreUnresolvedSubs, int parallelThreshold, ForkJoinPool parallelPool, Executor executor) {
+        this.parent = null;
+        this.ignoreUnresolvedSubs = ignoreUnresolvedSubs;
+        this.parallelThreshold = parallelThreshold;
+        this.parallelPool = parallelPool;
+        this.executor = executor;
+        this.lazyValues = new LazyValues();
+    }
+
+    /**
+     * @param parent The context of the including template
+     */
+    RenderContext(RenderContext parent) {
+        this.parent = parent;
+        this.ignoreUnresolvedSubs = parent.ignoreUnresolvedSubs;
+        this.parallelThreshold = parent.parallelThreshold;
+        this.parallelPool = parent.parallelPool;
+        this.executor = parent.executor;
+        this.independent = parent.independent;
+        this.profile = parent.profile;
+        this.lazyValues = parent.lazyValues;
+    }
+
+    /*
+    A copy of the chain of contexts with the bundles as they are now.
+     */
+    private RenderContext(RenderContext parent, RenderContext from) {
+        this.parent = parent;
+        this.ignoreUnresolvedSubs = from.ignoreUnresolvedSubs;
+        this.parallelThreshold = from.parallelThreshold;
+        this.parallelPool = from.parallelPool;
+        this.executor = from.executor;
+        this.independent = from.independent;
+        this.bundle = from.bundle;
+        this.profile = from.profile;
+        this.lazyValues = from.lazyValues;
+    }
+
+    /**
+     * A copy for a template rendered on another thread. Later changes to the
+     * bundles of this template (and the including templates) are not seen by
+     * the copy.
+     *
+     * @return A copy of this context and its parents
+     */
+    RenderContext snapshot() {
+        return new RenderContext((parent == null) ? null : parent.snapshot(), this);
+    }
+
+    /**
+     * Clear the state so the context can be re-used (for the next row of a
+     * repeat).
+     */
+    void reset() {
+        appendToTemplate = true;
+        suspendDepth = 0;
+        suspendedDepth = 0;
+        bundle = null;
+    }
+
+    boolean isAppending() {
+        return appendToTemplate;
+    }
+
+    void pushSuspend(boolean newVal) {
+        if (appendToTemplate) {
+            appendToTemplate = newVal;
+        } else {
+            suspendedDepth++;
+        }
+        suspendDepth++;
+    }
+
+    /*
+    A fi# without an ifDef# (an empty stack) turns appending back on.
+     */
+    void popSuspend() {
+        if (suspendDepth == 0) {
+            appendToTemplate = true;
+        } else if (suspendedDepth > 0) {
+            suspendedDepth--;
+            suspendDepth--;
+            appendToTemplate = false;
+        } else {
+            suspendDepth--;
+            appendToTemplate = true;
+        }
+    }
+
+    /**
+     * The value of a Supplier. It is only got once per parse.
+     *
+     * @param supplier A value from the data
+     * @return What the supplier returned (can be null)
+     */
+    Object get(Supplier supplier) {
+        return lazyValues.get(supplier);
+    }
+
+    void setBundle(Map<String, String> bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Search this bundle then the bundles of the including templates.
+     *
+     * @param name The property name
+     * @return The value or null if not found
+     */
+    Object getBundleProperty(String name) {
+        RenderContext ctx = this;
+        while (ctx != null) {
+            if (ctx.bundle != null) {
+                Object v = ctx.bundle.get(name);
+                if (v != null) {
+                    return v;
+                }
+            }
+            ctx = ctx.parent;
+        }
+        return null;
+    }
+
+    /*
+    Shared by the threads that render rows or includes of one parse. A lookup
+    of a value already got takes no lock. computeIfAbsent gets each Supplier
+    once: a second thread asking for the same Supplier waits for the first.
+    Keyed by the identity of the Supplier (see Key) so two Suppliers that are
+    equals() but held under different names are each got. A
+    ConcurrentHashMap cannot hold null so NULL stands in for a Supplier that
+    returned null.
+     */
+    private static final class LazyValues {
+
+        private static final Object NULL = new Object();
+
+        private final ConcurrentHashMap<Key, Object> values = new ConcurrentHashMap<>();
+
+        private Object get(Supplier supplier) {
+            Key key = new Key(supplier);
+            Object value = values.get(key);
+            if (value == null) {
+                value = values.computeIfAbsent(key, k -> {
+                    Object v = k.supplier.get();
+                    return (v == null) ? NULL : v;
+                });
+            }
+            return (value == NULL) ? null : value;
+        }
+    }
+
+    /*
+    A Supplier compared by identity, not by its equals().
+     */
+    private static final class Key {
+
+        private final Supplier supplier;
+
+        private Key(Supplier supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(supplier);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Key) && (((Key) o).supplier == supplier);
+        }
+    }
+}
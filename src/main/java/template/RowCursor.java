@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.util.Map;
+
+/**
+ * Rows for a <b>repeat#</b> tag that are fetched one at a time, for example
+ * from a database result set.<br/>
+ * Each row is rendered as soon as it is fetched and is not held after that,
+ * so rendering to an OutputStream or Appendable uses the same memory however
+ * many rows there are.<br/>
+ * The cursor is closed when the repeat# is finished, when a row fails to
+ * render and when next() throws. A cursor can only be repeated once.
+ *
+ * @version $Rev: $ $Date: $
+ */
+public interface RowCursor extends AutoCloseable {
+
+    /**
+     * @return The next row or null if there are no more rows
+     * @throws Exception If the row cannot be fetched. The render fails with a
+     * TemplateException
+     */
+    Map next() throws Exception;
+
+    /**
+     * Release the rows (for example close the result set). No checked
+     * exception is declared: wrap one (a SQLException) in an unchecked
+     * exception. It fails the render unless the repeat# has already failed,
+     * then it is added to that failure as a suppressed exception.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the whole of a template in one pass.<br/>
+ * Files (and a FileInputStream) are read via their FileChannel straight in to
+ * an array of the file size. A file that grows while it is read is read to
+ * its end, one that shrinks is cut short. Files are not memory mapped: the
+ * compiled program keeps the bytes as its text so they are always copied in
+ * to the heap once, and a mapped file could not be replaced while it is
+ * cached.<br/>
+ * Other streams (URLs and the classpath) are read until end of stream using
+ * a buffer from the {@link BufferPool}. InputStream.available() is NOT used
+ * as it is only an estimate.
+ *
+ * @version $Rev: $ $Date: $
+ */
+final class SourceReader {
+
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private SourceReader() {
+    }
+
+    /**
+     * @param file The template file
+     * @return All of the bytes in the file
+     * @throws IOException If the file cannot be read or is too big
+     */
+    static byte[] read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(channel, "File [" + file + "]");
+        }
+    }
+
+    /*
+    From the current position to the end. The channel is not closed. name is
+    for error messages.
+     */
+    private static byte[] read(FileChannel channel, String name) throws IOException {
+        long size = Math.max(0, channel.size() - channel.position());
+        if (size > MAX_SIZE) {
+            throw new IOException(name + " is too big (" + size + " bytes)");
+        }
+        byte[] bytes = new byte[(int) size];
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb) < 0) {
+                /*
+                The file got shorter
+                 */
+                return Arrays.copyOf(bytes, bb.position());
+            }
+        }
+        ByteBuffer probe = ByteBuffer.allocate(1);
+        if (channel.read(probe) < 1) {
+            return bytes;
+        }
+        /*
+        The file got longer. Read the rest as a stream.
+         */
+        byte[] rest = read(Channels.newInputStream(channel));
+        if ((long) bytes.length + 1 + rest.length > MAX_SIZE) {
+            throw new IOException(name + " is too big");
+        }
+        byte[] all = Arrays.copyOf(bytes, bytes.length + 1 + rest.length);
+        all[bytes.length] = probe.get(0);
+        System.arraycopy(rest, 0, all, bytes.length + 1, rest.length);
+        return all;
+    }
+
+    /**
+     * Read until end of stream. The stream is not closed.
+     *
+     * @param in The template content
+     * @return All of the bytes
+     * @throws IOException
+     */
+    static byte[] read(InputStream in) throws IOException {
+        if (in instanceof FileInputStream) {
+            return read(((FileInputStream) in).getChannel(), "Stream");
+        }
+        byte[] buf = BufferPool.acquire(TemplateOutput.ByteOutput.DEFAULT_SIZE);
+        int count = 0;
+        try {
+            while (true) {
+                if (count == buf.length) {
+                    if (count >= MAX_SIZE) {
+                        throw new IOException("Stream is too big");
+                    }
+                    byte[] bigger = Arrays.copyOf(buf, (int) Math.min(MAX_SIZE, (long) count << 1));
+                    BufferPool.release(buf);
+                    buf = bigger;
+                }
+                int n = in.read(buf, count, buf.length - count);
+                if (n < 0) {
+                    return Arrays.copyOf(buf, count);
+                }
+                count += n;
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable copy of the System properties. This is the last place a
+ * template value is looked for.<br/>
+ * System.getProperties() is a synchronized Hashtable so looking up values in
+ * it from many render threads would contend. The copy is taken once and
+ * replaced (never changed) by refresh() so lookups take no lock.<br/>
+ * System properties set after the copy was taken are not seen until
+ * refresh() is called.<br/>
+ * <br/>
+ * <code>SystemPropertySnapshot.getInstance().refresh();</code>
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class SystemPropertySnapshot {
+
+    private static final SystemPropertySnapshot INSTANCE = new SystemPropertySnapshot();
+
+    private volatile Map<Object, Object> values;
+
+    private SystemPropertySnapshot() {
+        values = copy();
+    }
+
+    public static SystemPropertySnapshot getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param name The property name
+     * @return The value when the copy was taken or null if not found
+     */
+    public Object get(String name) {
+        return values.get(name);
+    }
+
+    /**
+     * @return The copy. It is never changed, refresh() replaces it
+     */
+    Map<Object, Object> values() {
+        return values;
+    }
+
+    /**
+     * Take a new copy of the System properties.
+     */
+    public void refresh() {
+        values = copy();
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    private static Map<Object, Object> copy() {
+        return new HashMap<>(System.getProperties());
+    }
+
+    @Override
+    public String toString() {
+        return "SystemPropertySnapshot:size=" + size();
+    }
+}
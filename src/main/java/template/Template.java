@@ -25,16 +25,35 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import template.TemplateOutput.ByteOutput;
+import template.TemplateOutput.CharOutput;
+import template.TemplateProgram.Instruction;
 
 /**
  * This class manages Templates of any text file type.<br/>
@@ -44,6 +63,23 @@ import java.util.Properties;
  * The Map object is searched<br/>
  * for the parameter. The object returned us substituted via the getString()
  * method.<br/>
+ * Templates are loaded and compiled once and then shared via the
+ * {@link TemplateCache}.<br/>
+ * A Template is not changed by parse or render so ONE instance can be shared
+ * by any number of threads.<br/>
+ * Large <b>repeat#</b> lists can be rendered in parallel, see
+ * setParallelRepeat().<br/>
+ * renderPublisher() publishes the text in chunks as it is rendered.<br/>
+ * renderAsync() loads the included templates concurrently and renders
+ * independent <b>template#</b> includes concurrently.<br/>
+ * Renders, includes, repeats, loads and unresolved values can be counted, see
+ * setMetrics().<br/>
+ * profile() shows where the time of a single parse goes.<br/>
+ * A value can be a java.util.function.Supplier. It is only called if the value
+ * is used, and then only once per parse. Values inside an ifDef# or ifUnDef#
+ * block that is not included are never looked up.<br/>
+ * Numbers and other common values are written without calling toString().
+ * ValueWriters.register() sets how a type of value is written.<br/>
  * <br/>
  * <h2>A complete example: is in the test library:ExampleRepeat.java</h2>
  * </code> <h2>Template control tags:</h2> <h3>The following tags result in
@@ -53,7 +89,12 @@ import java.util.Properties;
  * <b>template?</b> - eg: %{template?varName} Include the template named in
  * property varName at this point.<br/>
  * <b>repeat#</b> - eg: %{repeat#file_006.html} Repeatedly include template
- * file_006.html at this point. See above example.<br/>
+ * file_006.html at this point. See above example. The rows are a List of
+ * Maps or, for very large repeats, an Iterable, Iterator, Stream or
+ * {@link RowCursor} of Maps that is read one row at a time.<br/>
+ * <h3>Filters</h3> A value name can be followed by a filter that escapes the
+ * value as it is written: %{name|html}, %{name|json} or %{name|url}. More
+ * filters can be added, see {@link ValueFilters}.<br/>
  * <h3>The following tags will not add text to the output. They manipulate the
  * existing data set.</h3> <b>set#</b> - eg: %{set#abc=123} Create value abc and
  * set it's value to 123. For definition inline<br/>
@@ -70,8 +111,8 @@ import java.util.Properties;
  * templete will provide values in ALL included (sub) templates.<br/>
  * A bundle included in a sub template overrides the higher level bundle and
  * will provide values in ALL included (sub/sub) templates. ETC.<br/>
- * - Do not load bundles in <b>repeat#</b> templates as they will be loaded each
- * time.<br/>
+ * - Bundles are loaded once and cached (see {@link BundleCache}) so they can
+ * be used in <b>repeat#</b> templates.<br/>
  * - Only ONE bundle per template can be loaded. A second bundle will replace
  * the first.<br/>
  * - Bundles are useful for String constants that can be defined once outside
@@ -141,31 +182,53 @@ public class Template {
     public static final String ERROR_SUFFIX = " +++}}";
     public static final String REPEAT_TP = "Repeat template property:";
     private static final String NL = System.getProperty("line.separator");
-    private static final char ID_CHAR = '%';
     private static final String ID_STRING = "%";
-    private static final String INC = "template#";
-    private static final String INC_VAR = "template?";
-    private static final String BUNDLE_REF = "bundle#";
-    private static final String BUNDLE_VAR = "bundle?";
-    private static final String REPEAT = "repeat#";
-    private static final String IF_DEF = "ifDef#";
-    private static final String IF_UN_DEF = "ifUnDef#";
-    private static final String FI = "fi#";
-    private static final String SET_VAR = "set#";
-    private static final String SET_VAR_VAR = "set?";
-    private static final String UN_SET_VAR = "unSet#";
-    private static final String LIST_DATA = "listData";
-    private byte[] fragmentStr;
-    private int maxIndex;
-    private final Deque appendToTemplateStack = new LinkedList();
-    private boolean appendToTemplate = true;
+    static final String INC = "template#";
+    static final String INC_VAR = "template?";
+    static final String BUNDLE_REF = "bundle#";
+    static final String BUNDLE_VAR = "bundle?";
+    static final String REPEAT = "repeat#";
+    static final String IF_DEF = "ifDef#";
+    static final String IF_UN_DEF = "ifUnDef#";
+    static final String FI = "fi#";
+    static final String SET_VAR = "set#";
+    static final String SET_VAR_VAR = "set?";
+    static final String UN_SET_VAR = "unSet#";
+    static final String LIST_DATA = "listData";
+    static final String FILE_PREFIX = "file:";
+    private static final int MAX_PARALLEL_DEPTH = 16;
+    private static final int MIN_CHUNK_ROWS = 16;
+    private static final int CHUNKS_PER_THREAD = 4;
+    /*
+    The parse a getBundleProperty() override is called for. Only set for sub
+    classes that override it (see BUNDLE_HOOK).
+     */
+    private static final ThreadLocal<RenderContext> BUNDLE_CONTEXT = new ThreadLocal<>();
+    private static final ClassValue<Boolean> BUNDLE_HOOK = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != Template.class; c = c.getSuperclass()) {
+                try {
+                    c.getDeclaredMethod("getBundleProperty", String.class);
+                    return Boolean.TRUE;
+                } catch (NoSuchMethodException ex) {
+                    /*
+                    Try the super class
+                     */
+                }
+            }
+            return Boolean.FALSE;
+        }
+    };
+    private static volatile TemplateMetrics metrics = null;
+    private TemplateCache.Entry source;
+    private String location = null;
     private String fileUrl = null;
     private String templateName = null;
-    private Template parent;
-    private Properties bundle;
     private boolean loadViaUrl = true;
     private boolean cannotUseInclude = false;
-    private static final int VAL_LENGTH = 2;
+    private int parallelThreshold = 0;
+    private ForkJoinPool parallelPool = null;
 
     private Template() {
     }
@@ -178,6 +241,18 @@ public class Template {
             this.fileUrl = "";
             this.templateName = fileName;
         } else {
+            File template = new File(fileName);
+            this.fileUrl = template.getParent();
+            this.templateName = template.getName();
+        }
+        this.loadViaUrl = false;
+        this.location = location(this.templateName);
+        /*
+        Checked on every construction, not only when the template is loaded,
+        so a template file that has been deleted is reported even when the
+        cache still holds it.
+         */
+        if (!fileName.startsWith(RESOURCE_PREFIX)) {
             File template = new File(fileName);
             if (!template.exists()) {
                 throw new InvalidParameterException(TEMPLATE_STR + " ["
@@ -187,13 +262,8 @@ public class Template {
                 throw new InvalidParameterException(TEMPLATE_STR + " ["
                         + template.getAbsolutePath() + "] is not a file");
             }
-            this.fileUrl = template.getParent();
-            this.templateName = template.getName();
         }
-        this.parent = null;
-        this.loadViaUrl = false;
-        this.fragmentStr = load(this.templateName);
-        this.maxIndex = this.fragmentStr.length - 1;
+        this.source = TemplateCache.getInstance().get(this.location, () -> TemplateProgram.compile(load(templateName)));
     }
 
     /**
@@ -204,19 +274,18 @@ public class Template {
      * @throws TemplateException
      */
     public Template(String fileUrl, String templateName) throws TemplateException {
-        this(fileUrl, true, templateName, null);
+        this(fileUrl, true, templateName);
     }
 
-    private Template(String fileUrl, boolean loadViaUrl, String templateName, Template parent) throws TemplateException {
+    private Template(String fileUrl, boolean loadViaUrl, String templateName) throws TemplateException {
         if (templateName == null) {
             throw new TemplateException("Parameter templateName is null");
         }
-        this.parent = parent;
         this.templateName = templateName;
         this.fileUrl = fileUrl;
         this.loadViaUrl = loadViaUrl;
-        this.fragmentStr = load(this.templateName);
-        this.maxIndex = this.fragmentStr.length - 1;
+        this.location = location(templateName);
+        this.source = TemplateCache.getInstance().get(this.location, () -> TemplateProgram.compile(load(templateName)));
     }
 
     /**
@@ -237,45 +306,340 @@ public class Template {
      */
     public static String parse(String s, Map map, boolean ignoreUnresolvedSubs) {
         Template t = new Template();
-        t.fragmentStr = s.getBytes(UTF_8);
-        t.maxIndex = t.fragmentStr.length - 1;
+        t.source = new TemplateCache.Entry(TemplateProgram.compile(s.getBytes(UTF_8)));
         t.fileUrl = null;
         t.templateName = null;
-        t.parent = null;
         t.loadViaUrl = false;
         t.cannotUseInclude = false;
         return t.parse(map, ignoreUnresolvedSubs);
     }
 
-    private static String[] split(char ch, String s) {
-        StringBuilder sb0 = new StringBuilder();
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            if (c == ch) {
-                sb0 = sb;
-                sb.setLength(0);
-            } else {
-                sb.append(c);
-            }
+    /**
+     * Report renders, includes, repeats, loads and unresolved values of all
+     * templates to metrics. See {@link DefaultTemplateMetrics}.
+     *
+     * @param metrics Where to report. null to stop reporting (the default)
+     */
+    public static void setMetrics(TemplateMetrics metrics) {
+        Template.metrics = metrics;
+    }
+
+    /**
+     * @return Where renders are reported. null if they are not
+     */
+    public static TemplateMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Render repeat# lists with at least threshold rows on the common
+     * ForkJoinPool. See setParallelRepeat(int, ForkJoinPool).
+     *
+     * @param threshold The minimum number of rows. 0 to always render
+     * sequentially (the default)
+     */
+    public void setParallelRepeat(int threshold) {
+        setParallelRepeat(threshold, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Render repeat# lists with at least threshold rows in parallel. Applies
+     * to this template and the templates it includes. Set this before the
+     * Template is shared between threads.<br/>
+     * The rows are split in to chunks. Each chunk is rendered on the pool in
+     * to its own buffer and the buffers are written out in row order so the
+     * result is the same as a sequential render.<br/>
+     * The rows are rendered sequentially if the list is not RandomAccess,
+     * contains a row that is not a Map, or if the row template (or any template
+     * it includes) uses set#, set?, unSet#, template? or repeat#. These depend
+     * on the order the rows are rendered in.
+     *
+     * @param threshold The minimum number of rows. 0 to always render
+     * sequentially (the default)
+     * @param pool Where the rows are rendered
+     */
+    public void setParallelRepeat(int threshold, ForkJoinPool pool) {
+        if (threshold < 0) {
+            throw new InvalidParameterException("Parameter threshold is negative");
+        }
+        if ((pool == null) && (threshold > 0)) {
+            throw new InvalidParameterException("Parameter pool is null");
         }
-        return new String[]{sb0.toString(), sb.toString()};
+        this.parallelThreshold = threshold;
+        this.parallelPool = pool;
+    }
+
+    public int getParallelRepeatThreshold() {
+        return parallelThreshold;
     }
 
+    /**
+     * Override to provide values that are searched before the data maps. It
+     * is called once at the start of each parse of this template.
+     *
+     * @return Additional values or null
+     */
     public Map getAditionalData() {
         return null;
     }
 
     public String getTemplateText() {
-        return new String(fragmentStr);
+        return new String(source.program.text, UTF_8);
     }
 
     public String parse(Map data1) {
-        return parseDual(data1, null, false);
+        return parse(data1, false);
     }
 
+    /*
+    The buffer comes from the BufferPool and starts at about the size of the
+    recent output of this template so it rarely has to grow.
+     */
     public String parse(Map data1, boolean ignoreUnresolvedSubs) {
-        return parseDual(data1, null, ignoreUnresolvedSubs);
+        TemplateCache.Entry entry = source;
+        ByteOutput out = ByteOutput.pooled(null, entry.sizeHint());
+        try {
+            render(out, data1, ignoreUnresolvedSubs);
+            entry.recordSize(out.size());
+            return out.toString();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Write the resultant text to out as it is produced. Included and repeated
+     * templates are written directly to out, they are not built up as
+     * separate Strings.
+     *
+     * @param data1 The map containing the name value pairs
+     * @param out Where the resultant text is written
+     */
+    public void render(Map data1, Appendable out) {
+        render(data1, out, false);
+    }
+
+    /**
+     * @param data1 The map containing the name value pairs
+     * @param out Where the resultant text is written
+     * @param ignoreUnresolvedSubs True to leave values that cannot be resolved
+     * as they are
+     */
+    public void render(Map data1, Appendable out, boolean ignoreUnresolvedSubs) {
+        render(new CharOutput(out), data1, ignoreUnresolvedSubs);
+    }
+
+    /**
+     * Write the resultant text to out as UTF-8. Literal text is copied as bytes
+     * directly from the template. The stream is flushed but NOT closed.
+     *
+     * @param data1 The map containing the name value pairs
+     * @param out Where the resultant text is written
+     */
+    public void render(Map data1, OutputStream out) {
+        render(data1, out, false);
+    }
+
+    /**
+     * @param data1 The map containing the name value pairs
+     * @param out Where the resultant text is written
+     * @param ignoreUnresolvedSubs True to leave values that cannot be resolved
+     * as they are
+     */
+    public void render(Map data1, OutputStream out, boolean ignoreUnresolvedSubs) {
+        ByteOutput bytes = new ByteOutput(out, ByteOutput.DEFAULT_SIZE);
+        render(bytes, data1, ignoreUnresolvedSubs);
+        try {
+            bytes.flush();
+        } catch (IOException io) {
+            throw new TemplateException(ignoreException("Failed to write " + this + " " + io.getMessage(), io), io);
+        }
+    }
+
+    /**
+     * Render on the common ForkJoinPool. See renderAsync(Map, boolean,
+     * Executor).
+     *
+     * @param data1 The map containing the name value pairs
+     * @return The resultant text when it is complete
+     */
+    public CompletableFuture<String> renderAsync(Map data1) {
+        return renderAsync(data1, false, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * See renderAsync(Map, boolean, Executor).
+     *
+     * @param data1 The map containing the name value pairs
+     * @param executor Where the templates are loaded and rendered
+     * @return The resultant text when it is complete
+     */
+    public CompletableFuture<String> renderAsync(Map data1, Executor executor) {
+        return renderAsync(data1, false, executor);
+    }
+
+    /**
+     * Render without blocking the calling thread.<br/>
+     * First every template that is included by a <b>template#</b> tag (and
+     * the templates they include) that is not already in the
+     * {@link TemplateCache} is loaded. The loads are done at the same time on
+     * the executor. The template is then rendered on the executor.<br/>
+     * If no template in the render changes the data (set#, set?, unSet#) or
+     * chooses a template at render time (template?, repeat#) then sibling
+     * <b>template#</b> includes are also rendered at the same time. The text of
+     * each one is put in to the result in document order. Data maps must not be
+     * changed until the future is complete.<br/>
+     * Any executor can be used. A thread waiting for an include that has not
+     * started renders it itself so a small pool can not dead lock. On Java 21
+     * or later Executors.newVirtualThreadPerTaskExecutor() is a good choice
+     * when templates are loaded from a slow file system or via a URL.
+     *
+     * @param data1 The map containing the name value pairs
+     * @param ignoreUnresolvedSubs True to leave values that cannot be resolved
+     * as they are
+     * @param executor Where the templates are loaded and rendered
+     * @return The resultant text when it is complete. Completes exceptionally
+     * with a TemplateException if the render fails
+     */
+    public CompletableFuture<String> renderAsync(Map data1, boolean ignoreUnresolvedSubs, Executor executor) {
+        if (executor == null) {
+            throw new InvalidParameterException("Parameter executor is null");
+        }
+        return prefetch(executor, ConcurrentHashMap.newKeySet()).thenApplyAsync(v -> {
+            TemplateCache.Entry entry = source;
+            ByteOutput out = ByteOutput.pooled(null, entry.sizeHint());
+            try {
+                render(out, new RenderContext(ignoreUnresolvedSubs, parallelThreshold, parallelPool, executor), data1);
+                entry.recordSize(out.size());
+                return out.toString();
+            } finally {
+                out.release();
+            }
+        }, executor);
+    }
+
+    /**
+     * See profile(Map, boolean).
+     *
+     * @param data1 The map containing the name value pairs
+     * @return The resultant text and where the time went
+     */
+    public TemplateProfile profile(Map data1) {
+        return profile(data1, false);
+    }
+
+    /**
+     * Parse and record where the time goes. The result holds the resultant
+     * text (the same as parse()) and a tree of nodes that follows the
+     * <b>template#</b>, <b>template?</b>, <b>repeat#</b> and <b>bundle</b>
+     * tags. Each node has its inclusive and exclusive time, how many times it
+     * ran, the bytes it wrote and the values it could not find.<br/>
+     * Profiling renders everything on the calling thread (parallel repeat#
+     * and concurrent includes are not used) and costs a System.nanoTime() per
+     * include, repeat row and bundle. Use it for diagnosis, not in production.
+     *
+     * @param data1 The map containing the name value pairs
+     * @param ignoreUnresolvedSubs True to leave values that cannot be resolved
+     * as they are
+     * @return The resultant text and where the time went
+     */
+    public TemplateProfile profile(Map data1, boolean ignoreUnresolvedSubs) {
+        RenderContext ctx = new RenderContext(ignoreUnresolvedSubs);
+        ctx.profile = new TemplateProfile.Node(toString());
+        ByteOutput out = ByteOutput.pooled(null, source.sizeHint());
+        try {
+            long start = System.nanoTime();
+            render(out, ctx, data1);
+            ctx.profile.record(System.nanoTime() - start, out.written());
+            return new TemplateProfile(out.toString(), ctx.profile);
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Publish the text in 8192 byte chunks rendered on the common
+     * ForkJoinPool. See renderPublisher(Map, boolean, Executor, int).
+     *
+     * @param data1 The map containing the name value pairs
+     * @return A publisher of the UTF-8 text
+     */
+    public Flow.Publisher<ByteBuffer> renderPublisher(Map data1) {
+        return renderPublisher(data1, false, ForkJoinPool.commonPool(), ByteOutput.DEFAULT_SIZE);
+    }
+
+    /**
+     * Publish the text as it is rendered, in UTF-8 chunks of chunkSize bytes
+     * (the last chunk can be shorter). Each subscriber gets its own render. It
+     * is started on the executor by the first request().<br/>
+     * A chunk is published as soon as it is full and only when the subscriber
+     * has asked for it. With no outstanding demand the render waits, so a
+     * slow client pauses the render rather than the text being buffered. The
+     * waiting render holds its executor thread: on Java 21 or later
+     * Executors.newVirtualThreadPerTaskExecutor() is a good choice.<br/>
+     * cancel() stops the render at the next chunk and closes any
+     * <b>repeat#</b> sources that are open. A failed render is signalled with
+     * onError. Data maps must not be changed until the subscriber is complete.
+     *
+     * @param data1 The map containing the name value pairs
+     * @param ignoreUnresolvedSubs True to leave values that cannot be resolved
+     * as they are
+     * @param executor Where the render runs
+     * @param chunkSize The size of each chunk in bytes
+     * @return A publisher of the UTF-8 text
+     */
+    public Flow.Publisher<ByteBuffer> renderPublisher(Map data1, boolean ignoreUnresolvedSubs, Executor executor, int chunkSize) {
+        if (executor == null) {
+            throw new InvalidParameterException("Parameter executor is null");
+        }
+        if (chunkSize <= 0) {
+            throw new InvalidParameterException("Parameter chunkSize must be positive");
+        }
+        return new TemplatePublisher(this, data1, ignoreUnresolvedSubs, executor, chunkSize);
+    }
+
+    private void render(TemplateOutput out, Map data1, boolean ignoreUnresolvedSubs) {
+        render(out, new RenderContext(ignoreUnresolvedSubs, parallelThreshold, parallelPool, null), data1);
+    }
+
+    void render(TemplateOutput out, RenderContext ctx, Map data1) {
+        TemplateMetrics m = metrics;
+        long start = (m == null) ? 0 : System.nanoTime();
+        try {
+            parseDual(ctx, out, data1, null);
+            if ((m != null) && (location != null)) {
+                m.rendered(location, System.nanoTime() - start, out.written());
+            }
+        } catch (IOException io) {
+            throw new TemplateException(ignoreException("Failed to write " + this + " " + io.getMessage(), io), io);
+        }
+    }
+
+    /*
+    Load the templates included by template# that are not cached. Each one is
+    loaded on the executor and then its own includes are loaded. The future is
+    complete when they are all loaded. Templates that fail to load are ignored
+    here, the render reports them.
+     */
+    private CompletableFuture<Void> prefetch(Executor executor, Set<String> seen) {
+        List<CompletableFuture<Void>> loads = new ArrayList<>();
+        for (Instruction ins : source.program.instructions) {
+            if ((ins.op != TemplateProgram.INC) || !seen.add(location(ins.name))) {
+                continue;
+            }
+            final String name = ins.name;
+            if (TemplateCache.getInstance().contains(location(name))) {
+                try {
+                    loads.add(new Template(fileUrl, loadViaUrl, name).prefetch(executor, seen));
+                } catch (TemplateException ex) {
+                }
+            } else {
+                loads.add(CompletableFuture.supplyAsync(() -> new Template(fileUrl, loadViaUrl, name), executor)
+                        .thenCompose(inc -> inc.prefetch(executor, seen))
+                        .exceptionally(ex -> null));
+            }
+        }
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture[loads.size()]));
     }
 
     @Override
@@ -283,332 +647,958 @@ public class Template {
         return TEMPLATE_STR + ":" + templateName;
     }
 
-    private void pushSuspend(boolean newVal) {
-        if (appendToTemplate) {
-            appendToTemplateStack.push(appendToTemplate);
-            appendToTemplate = newVal;
-        } else {
-            appendToTemplateStack.push(Boolean.FALSE);
+    /*
+    All of the state of a parse is held in ctx. A Template instance is never
+    changed by a parse so it can be shared by many threads.
+     */
+    private void parseDual(RenderContext ctx, TemplateOutput sbx, Map data1, Map data2) throws IOException {
+        /*
+        Read once. The cached version may be replaced (reloaded) during the parse.
+         */
+        TemplateProgram program = source.program;
+        ctx.additional = getAditionalData();
+        if ((ctx.executor != null) && (program.includes > 1)) {
+            if (!ctx.independent) {
+                ctx.independent = isParallelSafe(this);
+            }
+            if (ctx.independent) {
+                parseConcurrent(ctx, sbx, program, data1, data2);
+                return;
+            }
+        }
+        TemplateRenderer renderer = source.renderer(program);
+        if (renderer != null) {
+            renderer.render(this, ctx, sbx, data1, data2);
+            return;
+        }
+        Instruction[] instructions = program.instructions;
+        for (int i = 0; i < instructions.length; i++) {
+            Instruction ins = instructions[i];
+            if (ins.op == TemplateProgram.LITERAL) {
+                if (ctx.isAppending()) {
+                    sbx.writeLiteral(program.text, ins);
+                }
+            } else if (ins.op == TemplateProgram.UNTERMINATED) {
+                sbx.write(ERROR_PREFIX
+                        + "SUBSTITUTION VAR NOT TERMINATED"
+                        + ERROR_SUFFIX);
+                return;
+            } else if ((program.jumps[i] > 0) && ctx.isAppending()) {
+                if (isIncluded(ctx, ins, data1, data2)) {
+                    ctx.pushSuspend(true);
+                } else {
+                    i = program.jumps[i];
+                }
+            } else {
+                String val = lookUpVar(ctx, sbx, ins, data1, data2);
+                if (ctx.isAppending()) {
+                    sbx.write(val);
+                }
+            }
         }
     }
 
-    private void popSuspend() {
-        if (appendToTemplateStack.isEmpty()) {
-            appendToTemplate = true;
-        } else {
-            appendToTemplate = (boolean) appendToTemplateStack.pop();
+    /*
+    The same as parseDual but each template# include is started on the
+    executor. The text after an include is written to a new segment. The
+    includes and segments are written to sbx in order at the end. If the
+    render fails the includes that have not been written are abandoned and
+    their segments released.
+     */
+    private void parseConcurrent(RenderContext ctx, TemplateOutput sbx, TemplateProgram program, Map data1, Map data2) throws IOException {
+        List<Object> parts = new ArrayList<>();
+        int appended = 0;
+        try {
+            parseParts(ctx, sbx, program, data1, data2, parts);
+            for (; appended < parts.size(); appended++) {
+                Object part = parts.get(appended);
+                if (part instanceof IncludeTask) {
+                    sbx.append(((IncludeTask) part).join());
+                } else {
+                    sbx.append((TemplateOutput) part);
+                }
+            }
+        } finally {
+            for (int p = appended; p < parts.size(); p++) {
+                Object part = parts.get(p);
+                if (part instanceof IncludeTask) {
+                    ((IncludeTask) part).abandon();
+                } else {
+                    ((TemplateOutput) part).release();
+                }
+            }
         }
     }
 
-    private String parseDual(Map data1, Map data2, boolean ignoreUnresolvedSubs) {
-        int pos = 0;
-        byte c;
-        StringBuilder sbx = new StringBuilder();
-        if (pos > maxIndex) {
-            c = 0;
-        } else {
-            c = fragmentStr[pos];
-            pos++;
-        }
-        while (c != 0) {
-            if (c == ID_CHAR) {
-                if (pos > maxIndex) {
-                    if (appendToTemplate) {
-                        sbx.append((char) c);
-                    }
+    private void parseParts(RenderContext ctx, TemplateOutput sbx, TemplateProgram program, Map data1, Map data2, List<Object> parts) throws IOException {
+        TemplateOutput out = sbx;
+        Instruction[] instructions = program.instructions;
+        for (int i = 0; i < instructions.length; i++) {
+            Instruction ins = instructions[i];
+            if (ins.op == TemplateProgram.LITERAL) {
+                if (ctx.isAppending()) {
+                    out.writeLiteral(program.text, ins);
+                }
+            } else if (ins.op == TemplateProgram.UNTERMINATED) {
+                out.write(ERROR_PREFIX
+                        + "SUBSTITUTION VAR NOT TERMINATED"
+                        + ERROR_SUFFIX);
+                break;
+            } else if ((program.jumps[i] > 0) && ctx.isAppending()) {
+                if (isIncluded(ctx, ins, data1, data2)) {
+                    ctx.pushSuspend(true);
                 } else {
-                    c = fragmentStr[pos];
-                    pos++;
-                    if (c == '{') {
-                        String var = parseVarName(pos);
-                        if (var == null) {
-                            sbx.append(ERROR_PREFIX
-                                    + "SUBSTITUTION VAR NOT TERMINATED"
-                                    + ERROR_SUFFIX);
-                            return sbx.toString();
-                        } else {
-                            pos = pos + var.length() + 1;
-                            String val = lookUpVar(var, data1, data2, ignoreUnresolvedSubs);
-                            if (appendToTemplate) {
-                                sbx.append(val);
-                            }
-                        }
-                    } else {
-                        if (c == ID_CHAR) {
-                            if (appendToTemplate) {
-                                sbx.append(ID_CHAR);
-                            }
-                        } else {
-                            if (appendToTemplate) {
-                                sbx.append(ID_CHAR);
-                            }
-                            if (appendToTemplate) {
-                                sbx.append((char) c);
-                            }
-                        }
-                    }
+                    i = program.jumps[i];
                 }
+            } else if ((ins.op == TemplateProgram.INC) && ctx.isAppending()) {
+                Template f;
+                try {
+                    f = new Template(fileUrl, loadViaUrl, ins.name);
+                } catch (TemplateException ex) {
+                    out.write(ignoreException(ERROR_PREFIX + TEMPLATE_STR + ':' + ins.name + NOT_FOUND + ERROR_SUFFIX, ex));
+                    continue;
+                }
+                reportIncluded(f);
+                IncludeTask task = new IncludeTask(f, new RenderContext(ctx.snapshot()), sbx.segment(), data1, data2);
+                parts.add(task);
+                try {
+                    ctx.executor.execute(task);
+                } catch (RejectedExecutionException ex) {
+                    /*
+                    Rendered by this thread when it is joined
+                     */
+                }
+                out = sbx.segment();
+                parts.add(out);
             } else {
-                if (appendToTemplate) {
-                    sbx.append((char) c);
+                String val = lookUpVar(ctx, out, ins, data1, data2);
+                if (ctx.isAppending()) {
+                    out.write(val);
                 }
             }
-            if (pos > maxIndex) {
-                c = 0;
-            } else {
-                c = fragmentStr[pos];
-                pos++;
+        }
+    }
+
+    /*
+    An included template rendered on another thread. It is run by which ever
+    thread gets to it first: the executor or the thread that needs its text.
+    An abandoned task releases its segment (see SegmentState).
+     */
+    private static final class IncludeTask implements Runnable {
+
+        private final SegmentState state = new SegmentState();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final Template template;
+        private final RenderContext ctx;
+        private final TemplateOutput out;
+        private final Map data1;
+        private final Map data2;
+        private Throwable failure;
+
+        private IncludeTask(Template template, RenderContext ctx, TemplateOutput out, Map data1, Map data2) {
+            this.template = template;
+            this.ctx = ctx;
+            this.out = out;
+            this.data1 = data1;
+            this.data2 = data2;
+        }
+
+        @Override
+        public void run() {
+            if (!state.start()) {
+                return;
             }
+            try {
+                parseNested(template, ctx, out, data1, data2);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                if (!state.finish()) {
+                    out.release();
+                }
+                done.countDown();
+            }
+        }
 
+        private void abandon() {
+            if (state.abandon()) {
+                out.release();
+            }
         }
-        return sbx.toString();
-    }
 
-    private String lookUpVar(String name, Map data1, Map data2, boolean ignoreUnresolvedSubs) {
-        if (name == null || name.length() == 0) {
-            return ERROR_PREFIX + "SUBSTITUTION VAR IS EMPTY" + ERROR_SUFFIX;
+        private TemplateOutput join() throws IOException {
+            run();
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new TemplateException(ignoreException("Interrupted waiting for " + template, ex), ex);
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            return out;
         }
+    }
+
+    /*
+    Returns the text to be appended. Values and included and repeated
+    templates are written directly to sbx and "" is returned.
+     */
+    String lookUpVar(RenderContext ctx, TemplateOutput sbx, Instruction ins, Map data1, Map data2) throws IOException {
+        switch (ins.op) {
+            case TemplateProgram.EMPTY:
+                return ERROR_PREFIX + "SUBSTITUTION VAR IS EMPTY" + ERROR_SUFFIX;
 
-        if (name.startsWith(BUNDLE_VAR)) {
-            if (cannotUseInclude) {
-                return ERROR_PREFIX + CANNOT_USE + BUNDLE_VAR
-                        + IN_STR_MODE + ERROR_SUFFIX;
+            case TemplateProgram.BUNDLE_VAR: {
+                if (cannotUseInclude) {
+                    return ERROR_PREFIX + CANNOT_USE + BUNDLE_VAR
+                            + IN_STR_MODE + ERROR_SUFFIX;
+                }
+                if (ctx.isAppending()) {
+                    String incName = ins.name;
+                    Object incNameValue = getSubVar(ctx, incName, data1, data2);
+                    if (incNameValue == null) {
+                        reportUnresolved(ctx, incName);
+                        if (ctx.ignoreUnresolvedSubs) {
+                            return ID_STRING + '{' + incName + '}';
+                        } else {
+                            return ERROR_PREFIX + "'" + INC_VAR + incName
+                                    + SUB_NOT_FOUND + ERROR_SUFFIX;
+                        }
+                    }
+                    try {
+                        long start = (ctx.profile == null) ? 0 : System.nanoTime();
+                        ctx.setBundle(loadBundle(incNameValue.toString()));
+                        profileBundle(ctx, BUNDLE_VAR + incName + '=' + incNameValue, start);
+                    } catch (TemplateException ex) {
+                        return ignoreException(ERROR_PREFIX + BUNDLE_STR + incNameValue
+                                + NOT_FOUND + ERROR_SUFFIX, ex);
+                    }
+                }
+                return "";
             }
-            if (appendToTemplate) {
-                String incName = name.substring(BUNDLE_VAR.length());
-                Object incNameValue = getSubVar(incName, data1, data2);
-                if (incNameValue == null) {
-                    if (ignoreUnresolvedSubs) {
-                        return ID_STRING + '{' + incName + '}';
-                    } else {
-                        return ERROR_PREFIX + "'" + INC_VAR + incName
-                                + SUB_NOT_FOUND + ERROR_SUFFIX;
+
+            case TemplateProgram.BUNDLE_REF: {
+                if (cannotUseInclude) {
+                    return ERROR_PREFIX + CANNOT_USE + BUNDLE_REF
+                            + IN_STR_MODE + ERROR_SUFFIX;
+                }
+                if (ctx.isAppending()) {
+                    String bundleName = ins.name;
+                    try {
+                        long start = (ctx.profile == null) ? 0 : System.nanoTime();
+                        ctx.setBundle(loadBundle(bundleName));
+                        profileBundle(ctx, BUNDLE_REF + bundleName, start);
+                    } catch (TemplateException ex) {
+                        return ignoreException(ERROR_PREFIX + BUNDLE_STR + bundleName + NOT_FOUND
+                                + ERROR_SUFFIX, ex);
                     }
                 }
-                try {
-                    bundle = loadBundle(incNameValue.toString());
-                } catch (TemplateException ex) {
-                    return ignoreException(ERROR_PREFIX + BUNDLE_STR + incNameValue
-                            + NOT_FOUND + ERROR_SUFFIX, ex);
+                return "";
+            }
+
+            case TemplateProgram.REPEAT: {
+                if (cannotUseInclude) {
+                    return ERROR_PREFIX + CANNOT_USE + REPEAT
+                            + IN_STR_MODE + ERROR_SUFFIX;
                 }
+                if (ctx.isAppending()) {
+                    TemplateProfile.Node parent = ctx.profile;
+                    if (parent == null) {
+                        return repeat(ctx, sbx, ins.name, data1, data2);
+                    }
+                    TemplateProfile.Node node = parent.child(REPEAT + ins.name);
+                    ctx.profile = node;
+                    long start = System.nanoTime();
+                    long written = sbx.written();
+                    try {
+                        return repeat(ctx, sbx, ins.name, data1, data2);
+                    } finally {
+                        node.record(System.nanoTime() - start, sbx.written() - written);
+                        ctx.profile = parent;
+                    }
+                }
+                return "";
+            }
+
+            case TemplateProgram.INC: {
+                if (cannotUseInclude) {
+                    return ERROR_PREFIX + CANNOT_USE + INC + IN_STR_MODE
+                            + ERROR_SUFFIX;
+                }
+                if (ctx.isAppending()) {
+                    String incName = ins.name;
+                    Template f;
+                    try {
+                        f = new Template(fileUrl, loadViaUrl, incName);
+                    } catch (TemplateException ex) {
+                        return ignoreException(ERROR_PREFIX + TEMPLATE_STR + ':' + incName + NOT_FOUND + ERROR_SUFFIX, ex);
+                    }
+                    reportIncluded(f);
+                    parseChild(f, new RenderContext(ctx), sbx, data1, data2, INC + incName);
+                }
+                return "";
             }
-            return "";
-        }
 
-        if (name.startsWith(BUNDLE_REF)) {
-            if (cannotUseInclude) {
-                return ERROR_PREFIX + CANNOT_USE + BUNDLE_REF
-                        + IN_STR_MODE + ERROR_SUFFIX;
+            case TemplateProgram.INC_VAR: {
+                if (cannotUseInclude) {
+                    return ERROR_PREFIX + CANNOT_USE + INC_VAR
+                            + IN_STR_MODE + ERROR_SUFFIX;
+                }
+                if (ctx.isAppending()) {
+                    String incName = ins.name;
+                    Object incNameValue = getSubVar(ctx, incName, data1, data2);
+                    if (incNameValue == null) {
+                        reportUnresolved(ctx, incName);
+                        if (ctx.ignoreUnresolvedSubs) {
+                            return ID_STRING + '{' + incName + '}';
+                        } else {
+                            return ERROR_PREFIX + "'" + INC_VAR + incName
+                                    + SUB_NOT_FOUND + ERROR_SUFFIX;
+                        }
+                    }
+                    Template f;
+                    try {
+                        f = new Template(fileUrl, loadViaUrl,
+                                incNameValue.toString());
+                    } catch (TemplateException ex) {
+                        return ignoreException(ERROR_PREFIX + TEMPLATE_STR + ':' + incNameValue + NOT_FOUND + ERROR_SUFFIX, ex);
+                    }
+                    reportIncluded(f);
+                    parseChild(f, new RenderContext(ctx), sbx, data1, data2, INC_VAR + incName + '=' + incNameValue);
+                }
+                return "";
             }
-            if (appendToTemplate) {
-                String bundleName = name.substring(BUNDLE_REF.length());
-                try {
-                    bundle = loadBundle(bundleName);
-                } catch (TemplateException ex) {
-                    return ignoreException(ERROR_PREFIX + BUNDLE_STR + bundleName + NOT_FOUND
-                            + ERROR_SUFFIX, ex);
+
+            case TemplateProgram.IF_UN_DEF:
+            case TemplateProgram.IF_DEF:
+                ctx.pushSuspend(ctx.isAppending() && isIncluded(ctx, ins, data1, data2));
+                return "";
+
+            case TemplateProgram.FI:
+                ctx.popSuspend();
+                return "";
+
+            case TemplateProgram.SET_VAR:
+                if (ctx.isAppending()) {
+                    data1.put(ins.name, ins.value);
                 }
+                return "";
+
+            case TemplateProgram.SET_VAR_VAR:
+                if (ctx.isAppending()) {
+                    Object var = getSubVar(ctx, ins.value, data1, data2);
+                    if (var == null) {
+                        reportUnresolved(ctx, ins.value);
+                        if (ctx.ignoreUnresolvedSubs) {
+                            return ID_STRING + '{' + ins.value + '}';
+                        } else {
+                            return ERROR_PREFIX + "'" + INC_VAR + ins.value
+                                    + SUB_NOT_FOUND + ERROR_SUFFIX;
+                        }
+                    }
+                    data1.put(ins.name, var);
+                }
+                return "";
+
+            case TemplateProgram.UN_SET_VAR:
+                if (ctx.isAppending()) {
+                    data1.remove(ins.name);
+                }
+                return "";
+
+            case TemplateProgram.LIST_DATA:
+                if (!ctx.isAppending()) {
+                    return "";
+                }
+                return (stringData(data1, data2));
+
+            case TemplateProgram.FILTERED_VAR: {
+                if (!ctx.isAppending()) {
+                    return "";
+                }
+                ValueFilter filter = ins.filter();
+                Object var = (filter == null) ? getSubVar(ctx, ins.tag, data1, data2) : getSubVar(ctx, ins, data1, data2);
+                if (var == null) {
+                    reportUnresolved(ctx, (filter == null) ? ins.tag : ins.name);
+                    return unresolved(ins.tag, ctx.ignoreUnresolvedSubs);
+                }
+                if (filter == null) {
+                    ValueWriters.write(var, sbx);
+                } else {
+                    ValueFilters.write(filter, var, sbx);
+                }
+                return "";
             }
-            return "";
+
+            default:
+                if (!ctx.isAppending()) {
+                    return "";
+                }
+                Object var = getSubVar(ctx, ins, data1, data2);
+                if (var == null) {
+                    reportUnresolved(ctx, ins.name);
+                    return unresolved(ins.name, ctx.ignoreUnresolvedSubs);
+                }
+                ValueWriters.write(var, sbx);
+                return "";
         }
+    }
 
-        if (name.startsWith(REPEAT)) {
-            if (cannotUseInclude) {
-                return ERROR_PREFIX + CANNOT_USE + REPEAT
-                        + IN_STR_MODE + ERROR_SUFFIX;
+    /*
+    The repeat# tag. Returns the text to be appended, the rows are written
+    directly to sbx.
+     */
+    private String repeat(RenderContext ctx, TemplateOutput sbx, String repeatTemplateName, Map data1, Map data2) throws IOException {
+        Object o = getSubVar(ctx, repeatTemplateName, data1, data2);
+        if (o != null) {
+            if (o instanceof String) {
+                repeatTemplateName = (String) o;
+                o = getSubVar(ctx, repeatTemplateName, data1, data2);
             }
-            if (appendToTemplate) {
-                StringBuilder sb = new StringBuilder();
-                String repeatTemplateName = name.substring(REPEAT.length());
-                Object o = getSubVar(repeatTemplateName, data1, data2);
-                if (o != null) {
-                    if (o instanceof String) {
-                        repeatTemplateName = (String) o;
-                        o = getSubVar(repeatTemplateName, data1, data2);
+            if (o instanceof List) {
+                List list = (List) o;
+                reportRepeated(repeatTemplateName, list.size());
+                /*
+                If the list contains a row that is not a Map then ONLY the
+                error is returned. The rows before it are parsed (for any
+                side effects) but the output is thrown away.
+                 */
+                TemplateOutput sb = sbx;
+                for (int i = 0; i < list.size(); i++) {
+                    if (!(list.get(i) instanceof Map)) {
+                        sb = new ByteOutput(ByteOutput.DEFAULT_SIZE);
+                        break;
                     }
-                    if (o instanceof List) {
-                        List list = (List) o;
-                        for (int i = 0; i < list.size(); i++) {
-                            Object listMember = list.get(i);
-                            if (listMember instanceof Map) {
+                }
+                /*
+                The row template is loaded once (on the first row) and
+                reset before each row is parsed.
+                 */
+                Template f = null;
+                RenderContext rowCtx = null;
+                if ((sb == sbx) && (ctx.parallelThreshold > 0)
+                        && (list.size() >= ctx.parallelThreshold)
+                        && (list instanceof RandomAccess)) {
+                    try {
+                        f = new Template(fileUrl, loadViaUrl, repeatTemplateName);
+                    } catch (TemplateException ex) {
+                        return ignoreException(ERROR_PREFIX + TEMPLATE_STR + ':'
+                                + repeatTemplateName + NOT_FOUND
+                                + ERROR_SUFFIX, ex);
+                    }
+                    if (isParallelSafe(f)) {
+                        parallelRepeat(ctx, sbx, f, data1, list);
+                        return "";
+                    }
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    Object listMember = list.get(i);
+                    if (listMember instanceof Map) {
+                        if (rowCtx == null) {
+                            if (f == null) {
                                 try {
-                                    Template f = new Template(fileUrl,
-                                            loadViaUrl, repeatTemplateName, this);
-                                    sb.append(f.parseDual(data1,
-                                            (Map) listMember, ignoreUnresolvedSubs));
+                                    f = new Template(fileUrl,
+                                            loadViaUrl, repeatTemplateName);
                                 } catch (TemplateException ex) {
                                     return ignoreException(ERROR_PREFIX + TEMPLATE_STR + ':'
                                             + repeatTemplateName + NOT_FOUND
                                             + ERROR_SUFFIX, ex);
                                 }
-                            } else {
-                                return ERROR_PREFIX
-                                        + REPEAT_TP
-                                        + repeatTemplateName
-                                        + " must only contain java.util.Map objects"
-                                        + ERROR_SUFFIX;
                             }
+                            rowCtx = new RenderContext(ctx);
+                        } else {
+                            rowCtx.reset();
                         }
-                        return sb.toString();
+                        parseChild(f, rowCtx, sb, data1, (Map) listMember, repeatTemplateName);
                     } else {
-                        return ERROR_PREFIX + REPEAT_TP
+                        return ERROR_PREFIX
+                                + REPEAT_TP
                                 + repeatTemplateName
-                                + " must be of type java.util.List" + ERROR_SUFFIX;
+                                + " must only contain java.util.Map objects"
+                                + ERROR_SUFFIX;
                     }
-                } else {
-                    return ERROR_PREFIX + REPEAT_TP
-                            + repeatTemplateName + NOT_FOUND + ERROR_SUFFIX;
                 }
+                return "";
+            } else if ((o instanceof Iterable) || (o instanceof Iterator)
+                    || (o instanceof Stream) || (o instanceof RowCursor)) {
+                return streamRepeat(ctx, sbx, repeatTemplateName, data1, o);
+            } else {
+                return ERROR_PREFIX + REPEAT_TP
+                        + repeatTemplateName
+                        + " must be of type java.util.List, Iterable, Iterator, Stream or template.RowCursor" + ERROR_SUFFIX;
             }
-            return "";
+        } else {
+            reportUnresolved(ctx, repeatTemplateName);
+            return ERROR_PREFIX + REPEAT_TP
+                    + repeatTemplateName + NOT_FOUND + ERROR_SUFFIX;
         }
+    }
 
-        if (name.startsWith(INC)) {
-            if (cannotUseInclude) {
-                return ERROR_PREFIX + CANNOT_USE + INC + IN_STR_MODE
-                        + ERROR_SUFFIX;
-            }
-            if (appendToTemplate) {
-                String incName = name.substring(INC.length());
-                try {
-                    Template f = new Template(fileUrl, loadViaUrl, incName,
-                            this);
-                    return f.parseDual(data1, data2, ignoreUnresolvedSubs);
-                } catch (TemplateException ex) {
-                    return ignoreException(ERROR_PREFIX + TEMPLATE_STR + ':' + incName + NOT_FOUND + ERROR_SUFFIX, ex);
+    /*
+    Rows from an Iterable, Iterator, Stream or RowCursor are rendered as they
+    are read and are never held. They cannot be checked first so a row that is
+    not a Map ends the repeat with the error after the rows before it have been
+    written. The source (or its iterator) is closed if it is AutoCloseable,
+    whether the repeat works or fails.
+     */
+    private String streamRepeat(RenderContext ctx, TemplateOutput sbx, String repeatTemplateName, Map data1, Object source) throws IOException {
+        RowCursor cursor = null;
+        Iterator rows = null;
+        if (source instanceof RowCursor) {
+            cursor = (RowCursor) source;
+        } else if (source instanceof Stream) {
+            rows = ((Stream) source).iterator();
+        } else if (source instanceof Iterable) {
+            rows = ((Iterable) source).iterator();
+        } else {
+            rows = (Iterator) source;
+        }
+        AutoCloseable closer = null;
+        if (source instanceof AutoCloseable) {
+            closer = (AutoCloseable) source;
+        } else if (rows instanceof AutoCloseable) {
+            closer = (AutoCloseable) rows;
+        }
+        int count = 0;
+        Throwable failure = null;
+        try {
+            try {
+                Template f = null;
+                RenderContext rowCtx = null;
+                while (true) {
+                    Object row;
+                    if (cursor != null) {
+                        row = cursor.next();
+                        if (row == null) {
+                            break;
+                        }
+                    } else if (rows.hasNext()) {
+                        row = rows.next();
+                    } else {
+                        break;
+                    }
+                    if (!(row instanceof Map)) {
+                        return ERROR_PREFIX
+                                + REPEAT_TP
+                                + repeatTemplateName
+                                + " must only contain java.util.Map objects"
+                                + ERROR_SUFFIX;
+                    }
+                    if (rowCtx == null) {
+                        try {
+                            f = new Template(fileUrl, loadViaUrl, repeatTemplateName);
+                        } catch (TemplateException ex) {
+                            return ignoreException(ERROR_PREFIX + TEMPLATE_STR + ':'
+                                    + repeatTemplateName + NOT_FOUND
+                                    + ERROR_SUFFIX, ex);
+                        }
+                        rowCtx = new RenderContext(ctx);
+                    } else {
+                        rowCtx.reset();
+                    }
+                    parseChild(f, rowCtx, sbx, data1, (Map) row, repeatTemplateName);
+                    count++;
                 }
+            } catch (Throwable t) {
+                failure = t;
+                throw t;
+            } finally {
+                closeRows(closer, failure);
             }
-            return "";
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new TemplateException(ignoreException("Failed to read the rows of " + REPEAT + repeatTemplateName + " " + ex.getMessage(), ex), ex);
         }
+        reportRepeated(repeatTemplateName, count);
+        return "";
+    }
 
-        if (name.startsWith(INC_VAR)) {
-            if (cannotUseInclude) {
-                return ERROR_PREFIX + CANNOT_USE + INC_VAR
-                        + IN_STR_MODE + ERROR_SUFFIX;
+    /*
+    Close the source of a streamed repeat#, as try-with-resources would: a
+    failure to close is added to the failure of the repeat, or thrown if the
+    repeat worked.
+     */
+    private static void closeRows(AutoCloseable closer, Throwable failure) throws Exception {
+        if (closer == null) {
+            return;
+        }
+        try {
+            closer.close();
+        } catch (Exception ex) {
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
             }
-            if (appendToTemplate) {
-                String incName = name.substring(INC_VAR.length());
-                Object incNameValue = getSubVar(incName, data1, data2);
-                if (incNameValue == null) {
-                    if (ignoreUnresolvedSubs) {
-                        return ID_STRING + '{' + incName + '}';
-                    } else {
-                        return ERROR_PREFIX + "'" + INC_VAR + incName
-                                + SUB_NOT_FOUND + ERROR_SUFFIX;
-                    }
-                }
+            if (failure == null) {
+                throw ex;
+            }
+            failure.addSuppressed(ex);
+        }
+    }
+
+    /*
+    True if the block of an ifDef# or ifUnDef# is included. A value that is an
+    error message is not defined.
+     */
+    boolean isIncluded(RenderContext ctx, Instruction ins, Map data1, Map data2) {
+        Object ifVal = getSubVar(ctx, ins, data1, data2);
+        if (ifVal != null && ifVal.toString().startsWith(ERROR_PREFIX)) {
+            ifVal = null;
+        }
+        return (ifVal != null) == (ins.op == TemplateProgram.IF_DEF);
+    }
+
+    private void reportIncluded(Template f) {
+        TemplateMetrics m = metrics;
+        if ((m != null) && (location != null)) {
+            m.included(location, f.location);
+        }
+    }
+
+    private void reportRepeated(String repeatTemplateName, int rows) {
+        TemplateMetrics m = metrics;
+        if ((m != null) && (location != null)) {
+            m.repeated(location, location(repeatTemplateName), rows);
+        }
+    }
+
+    /*
+    Values in a suspended ifDef# block are looked up but not used so they are
+    not reported.
+     */
+    void reportUnresolved(RenderContext ctx, String name) {
+        if (!ctx.isAppending()) {
+            return;
+        }
+        TemplateMetrics m = metrics;
+        if ((m != null) && (location != null)) {
+            m.unresolved(location, name);
+        }
+        if (ctx.profile != null) {
+            ctx.profile.missed();
+        }
+    }
+
+    /*
+    Parse an included template or a repeat# row. When profiling the time and
+    output are added to the node for label under the current node.
+     */
+    private static void parseChild(Template f, RenderContext ctx, TemplateOutput out, Map data1, Map data2, String label) throws IOException {
+        TemplateProfile.Node parent = ctx.profile;
+        if (parent == null) {
+            parseNested(f, ctx, out, data1, data2);
+            return;
+        }
+        TemplateProfile.Node node = parent.child(label);
+        ctx.profile = node;
+        long start = System.nanoTime();
+        long written = out.written();
+        try {
+            parseNested(f, ctx, out, data1, data2);
+        } finally {
+            node.record(System.nanoTime() - start, out.written() - written);
+            ctx.profile = parent;
+        }
+    }
+
+    /*
+    Parse an included template or a repeat# row and report it to the metrics
+    as a render of that template. The time includes the templates it includes
+    in turn.
+     */
+    private static void parseNested(Template f, RenderContext ctx, TemplateOutput out, Map data1, Map data2) throws IOException {
+        TemplateMetrics m = metrics;
+        if ((m == null) || (f.location == null)) {
+            f.parseDual(ctx, out, data1, data2);
+            return;
+        }
+        long start = System.nanoTime();
+        long written = out.written();
+        f.parseDual(ctx, out, data1, data2);
+        m.rendered(f.location, System.nanoTime() - start, out.written() - written);
+    }
+
+    private static void profileBundle(RenderContext ctx, String label, long start) {
+        if (ctx.profile != null) {
+            ctx.profile.child(label).record(System.nanoTime() - start, 0);
+        }
+    }
+
+    /*
+    The text written for a value that is not found.
+     */
+    static String unresolved(String name, boolean ignoreUnresolvedSubs) {
+        if (ignoreUnresolvedSubs) {
+            return ID_STRING + '{' + name + '}';
+        } else {
+            return ERROR_PREFIX + "'" + INC_VAR + name
+                    + SUB_NOT_FOUND + ERROR_SUFFIX;
+        }
+    }
+
+    /*
+    Worked out once per program. It is worked out again if any cached
+    template has been added, re-loaded or removed since (an include may now
+    be different). If templates are not cached it is worked out every time.
+     */
+    private static boolean isParallelSafe(Template f) {
+        TemplateProgram program = f.source.program;
+        int generation = TemplateCache.getInstance().generation();
+        TemplateProgram.ParallelSafety safety = program.parallelSafety;
+        if ((safety != null) && (safety.generation == generation) && (generation >= 0)) {
+            return safety.safe;
+        }
+        boolean safe = isParallelSafe(f, 0);
+        program.parallelSafety = new TemplateProgram.ParallelSafety(generation, safe);
+        return safe;
+    }
+
+    /*
+    Rows can only be rendered in any order if the row template (and the
+    templates it includes) never change data1 and never choose a template at
+    render time. Recursive includes are not followed for ever.
+     */
+    private static boolean isParallelSafe(Template f, int depth) {
+        TemplateProgram program = f.source.program;
+        if (program.hasSideEffects || (depth > MAX_PARALLEL_DEPTH)) {
+            return false;
+        }
+        for (Instruction ins : program.instructions) {
+            if (ins.op == TemplateProgram.INC) {
+                Template inc;
                 try {
-                    Template f = new Template(fileUrl, loadViaUrl,
-                            incNameValue.toString(), this);
-                    return f.parseDual(data1, data2, ignoreUnresolvedSubs);
+                    inc = new Template(f.fileUrl, f.loadViaUrl, ins.name);
                 } catch (TemplateException ex) {
-                    return ignoreException(ERROR_PREFIX + TEMPLATE_STR + ':' + incNameValue + NOT_FOUND + ERROR_SUFFIX, ex);
+                    /*
+                    Renders the same error whatever the order
+                     */
+                    continue;
+                }
+                if (!isParallelSafe(inc, depth + 1)) {
+                    return false;
                 }
             }
-            return "";
         }
+        return true;
+    }
 
-        if (name.startsWith(IF_UN_DEF)) {
-            String ifName = name.substring(IF_UN_DEF.length());
-            Object ifVal = getSubVar(ifName, data1, data2);
-            if (ifVal != null && ifVal.toString().startsWith(ERROR_PREFIX)) {
-                ifVal = null;
+    /*
+    Render chunks of rows on the pool. The rows are split in to about
+    CHUNKS_PER_THREAD chunks per pool thread (each at least MIN_CHUNK_ROWS
+    rows) but no more than two chunks per thread are queued or held in memory
+    at a time. Each chunk is written out (in order) as soon as it and the
+    chunks before it are done. If the render fails the chunks that have not
+    been written are cancelled and their segments released.
+     */
+    private static void parallelRepeat(RenderContext ctx, TemplateOutput sbx, Template f, Map data1, List list) throws IOException {
+        ForkJoinPool pool = ctx.parallelPool;
+        int size = list.size();
+        int chunkSize = Math.max(MIN_CHUNK_ROWS, size / (pool.getParallelism() * CHUNKS_PER_THREAD));
+        int chunks = (size + chunkSize - 1) / chunkSize;
+        int window = pool.getParallelism() * 2;
+        Deque<RowChunk> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            for (int c = 0; c < chunks; c++) {
+                while ((next < chunks) && (pending.size() < window)) {
+                    int from = next * chunkSize;
+                    RowChunk chunk = new RowChunk(ctx, sbx.segment(), f, data1, list, from, Math.min(size, from + chunkSize));
+                    pending.add(chunk);
+                    chunk.task = pool.submit(chunk);
+                    next++;
+                }
+                sbx.append(pending.poll().join());
             }
-            pushSuspend(ifVal == null);
-            return "";
-        }
-
-        if (name.startsWith(IF_DEF)) {
-            String ifName = name.substring(IF_DEF.length());
-            Object ifVal = getSubVar(ifName, data1, data2);
-            if (ifVal != null && ifVal.toString().startsWith(ERROR_PREFIX)) {
-                ifVal = null;
+        } finally {
+            for (RowChunk chunk : pending) {
+                chunk.abandon();
             }
-            pushSuspend(ifVal != null);
-            return "";
         }
+    }
 
-        if (name.startsWith(FI)) {
-            popSuspend();
-            return "";
+    /*
+    A chunk of repeat# rows rendered on the pool. An abandoned chunk releases
+    its segment (see SegmentState).
+     */
+    private static final class RowChunk implements Callable<TemplateOutput> {
+
+        private final SegmentState state = new SegmentState();
+        private final RenderContext ctx;
+        private final TemplateOutput out;
+        private final Template template;
+        private final Map data1;
+        private final List list;
+        private final int from;
+        private final int to;
+        private ForkJoinTask<TemplateOutput> task;
+
+        private RowChunk(RenderContext ctx, TemplateOutput out, Template template, Map data1, List list, int from, int to) {
+            this.ctx = ctx;
+            this.out = out;
+            this.template = template;
+            this.data1 = data1;
+            this.list = list;
+            this.from = from;
+            this.to = to;
         }
 
-        if (name.startsWith(SET_VAR)) {
-            if (appendToTemplate) {
-                String exp = name.substring(SET_VAR.length());
-                String[] vals = split('=', exp);
-                if (vals.length != VAL_LENGTH) {
-                    return ERROR_PREFIX + SET_VAR
-                            + " expression " + exp + " is invalid" + ERROR_SUFFIX;
+        @Override
+        public TemplateOutput call() throws IOException {
+            if (!state.start()) {
+                return out;
+            }
+            try {
+                renderRows(ctx, out, template, data1, list, from, to);
+            } finally {
+                if (!state.finish()) {
+                    out.release();
                 }
-                data1.put(vals[0], vals[1]);
             }
-            return "";
+            return out;
         }
 
-        if (name.startsWith(SET_VAR_VAR)) {
-            if (appendToTemplate) {
-                String exp = name.substring(SET_VAR_VAR.length());
-                String[] vals = split('=', exp);
-                if (vals.length != VAL_LENGTH) {
-                    return ERROR_PREFIX + SET_VAR_VAR
-                            + " expression " + exp + " is invalid" + ERROR_SUFFIX;
-                }
-                Object var = getSubVar(vals[1], data1, data2);
-                if (var == null) {
-                    if (ignoreUnresolvedSubs) {
-                        return ID_STRING + '{' + vals[1] + '}';
-                    } else {
-                        return ERROR_PREFIX + "'" + INC_VAR + vals[1]
-                                + SUB_NOT_FOUND + ERROR_SUFFIX;
-                    }
-                }
-                data1.put(vals[0], var);
+        private TemplateOutput join() {
+            try {
+                return task.join();
+            } catch (RuntimeException | Error ex) {
+                out.release();
+                throw ex;
             }
-            return "";
         }
 
-        if (name.startsWith(UN_SET_VAR)) {
-            if (appendToTemplate) {
-                String exp = name.substring(UN_SET_VAR.length());
-                data1.remove(exp);
+        private void abandon() {
+            if (task != null) {
+                task.cancel(false);
             }
-            return "";
+            if (state.abandon()) {
+                out.release();
+            }
+        }
+    }
+
+    /*
+    Who owns the segment of a task that may be abandoned while it is queued
+    or running. If the task has not started, or has finished, the thread that
+    abandons it releases the segment. If it is running, the task releases the
+    segment when it finishes.
+     */
+    private static final class SegmentState {
+
+        private static final int NEW = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int ABANDONED = 3;
+        private final AtomicInteger state = new AtomicInteger(NEW);
+
+        /*
+        False if the task has already run or has been abandoned
+         */
+        private boolean start() {
+            return state.compareAndSet(NEW, RUNNING);
         }
 
-        if (name.equals(LIST_DATA)) {
-            return (stringData(data1, data2));
+        /*
+        False if the task was abandoned while it ran
+         */
+        private boolean finish() {
+            return state.compareAndSet(RUNNING, DONE);
         }
 
-        Object var = getSubVar(name, data1, data2);
-        if (var == null) {
-            if (ignoreUnresolvedSubs) {
-                return ID_STRING + '{' + name + '}';
-            } else {
-                return ERROR_PREFIX + "'" + INC_VAR + name
-                        + SUB_NOT_FOUND + ERROR_SUFFIX;
+        /*
+        True if the caller must release the segment
+         */
+        private boolean abandon() {
+            return state.getAndSet(ABANDONED) != RUNNING;
+        }
+    }
+
+    private static TemplateOutput renderRows(RenderContext ctx, TemplateOutput out, Template f, Map data1, List list, int from, int to) throws IOException {
+        RenderContext rowCtx = new RenderContext(ctx);
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                rowCtx.reset();
             }
+            parseNested(f, rowCtx, out, data1, (Map) list.get(i));
         }
-        return var.toString();
+        return out;
+    }
+
+    /**
+     * Look up a value outside of a parse. Bundles are only loaded during a
+     * parse so only an override of getBundleProperty() is searched. A
+     * Supplier is returned as it is, it is not called.
+     *
+     * @param varName The name of the value
+     * @param data1 The map passed to parse
+     * @param data2 The map for a repeat# row (can be null)
+     * @return The value or null if not found
+     */
+    public Object getSubVar(String varName, Map data1, Map data2) {
+        return getSubVar(null, varName, null, data1, data2);
     }
 
+    Object getSubVar(RenderContext ctx, String varName, Map data1, Map data2) {
+        return getSubVar(ctx, varName, null, data1, data2);
+    }
+
+    /*
+    The value named by an instruction. Its System property is found by slot
+    (see TemplateProgram.systemValue()).
+     */
+    Object getSubVar(RenderContext ctx, Instruction ins, Map data1, Map data2) {
+        return getSubVar(ctx, ins.name, ins, data1, data2);
+    }
+
+    /**
+     * Search the bundle of this template then the bundles of the templates
+     * that included it, for the parse that is looking up the value. Override
+     * to supply or change bundle values. Outside a parse (getSubVar(String,
+     * Map, Map)) no bundles are loaded so this returns null.
+     *
+     * @param name The property name
+     * @return The value or null if not found
+     */
     protected Object getBundleProperty(String name) {
-        if (bundle == null) {
-            if (parent == null) {
-                return null;
-            }
-            return parent.getBundleProperty(name);
+        RenderContext ctx = BUNDLE_CONTEXT.get();
+        return (ctx == null) ? null : ctx.getBundleProperty(name);
+    }
+
+    /*
+    A template that does not override getBundleProperty() searches the
+    bundles of ctx directly. Otherwise ctx is made available to
+    getBundleProperty() (and super.getBundleProperty()) for the call.
+     */
+    private Object bundleProperty(RenderContext ctx, String name) {
+        if (!BUNDLE_HOOK.get(getClass())) {
+            return (ctx == null) ? null : ctx.getBundleProperty(name);
         }
-        Object v = bundle.get(name);
-        if (v == null && parent != null) {
-            return parent.getBundleProperty(name);
+        RenderContext previous = BUNDLE_CONTEXT.get();
+        BUNDLE_CONTEXT.set(ctx);
+        try {
+            return getBundleProperty(name);
+        } finally {
+            BUNDLE_CONTEXT.set(previous);
         }
-        return v;
     }
 
-    public Object getSubVar(String varName, Map data1, Map data2) {
+    /*
+    Search order: getAditionalData(), the repeat# row, the map passed to parse,
+    the bundles (this template then the including templates) and finally the
+    System properties (see SystemPropertySnapshot). Each is a single lookup.
+    During a parse a Supplier is replaced by its (memoized) value. A Supplier
+    that returns null is a value that is not found.
+     */
+    private Object getSubVar(RenderContext ctx, String varName, Instruction ins, Map data1, Map data2) {
         Object o = null;
-        Map additional = getAditionalData();
+        Map additional = (ctx == null) ? getAditionalData() : ctx.additional;
         if (additional != null) {
             o = additional.get(varName);
         }
@@ -621,9 +1611,9 @@ public class Template {
                     o = data1.get(varName);
                 }
                 if (o == null) {
-                    o = getBundleProperty(varName);
+                    o = bundleProperty(ctx, varName);
                     if (o == null) {
-                        o = System.getProperties().get(varName);
+                        o = (ins == null) ? SystemPropertySnapshot.getInstance().get(varName) : ins.systemValue();
                         if (o == null) {
                             return null;
                         }
@@ -631,42 +1621,12 @@ public class Template {
                 }
             }
         }
+        if ((o instanceof Supplier) && (ctx != null)) {
+            return ctx.get((Supplier) o);
+        }
         return o;
     }
 
-    private String parseVarName(int pos) {
-        byte c = 0;
-        StringBuilder sb = new StringBuilder();
-        if (pos > maxIndex) {
-            c = 0;
-        } else {
-            c = fragmentStr[pos];
-            pos++;
-
-        }
-
-        while (c != 0) {
-            if (c == '}') {
-                return sb.toString();
-            } else {
-                if (c > 31) {
-                    sb.append((char) c);
-                } else {
-                    sb.append('_');
-                }
-
-            }
-            if (pos > maxIndex) {
-                c = 0;
-            } else {
-                c = fragmentStr[pos];
-                pos++;
-
-            }
-
-        }
-        return null;
-    }
 
     private String stringData(Map data1, Map data2) {
         StringBuilder sb = new StringBuilder();
@@ -693,9 +1653,25 @@ public class Template {
         return ret;
     }
 
-    private Properties loadBundle(String localBundleName)
+    /*
+    Bundles are shared via the BundleCache. Bundles from files are re-loaded
+    when the file changes.
+     */
+    private Map<String, String> loadBundle(String localBundleName)
+            throws TemplateException {
+        File file = null;
+        if (!loadViaUrl && !localBundleName.startsWith(RESOURCE_PREFIX)) {
+            file = new File(fileName(localBundleName));
+        }
+        Map<String, String> values = BundleCache.getInstance().get(location(localBundleName), file, () -> readBundle(localBundleName));
+        if (values.isEmpty()) {
+            return null;
+        }
+        return values;
+    }
+
+    private Map<String, String> readBundle(String localBundleName)
             throws TemplateException {
-        Properties p = new Properties();
         InputStream fis = null;
         String fileName = null;
         URL url = null;
@@ -703,7 +1679,7 @@ public class Template {
             if (loadViaUrl) {
                 fileName = fileUrl + "/" + localBundleName;
                 url = new URL(fileName);
-                p.load(url.openStream());
+                fis = url.openStream();
             } else {
                 if (localBundleName.startsWith(RESOURCE_PREFIX)) {
                     fis = this.getClass().getResourceAsStream(localBundleName.substring(RESOURCE_PREFIX.length()));
@@ -711,22 +1687,51 @@ public class Template {
                         throw new TemplateException(ignoreException("Failed to get input stream for [" + fileName + "]"));
                     }
                 } else {
-                    if ((fileUrl != null) && (fileUrl.trim().length() > 0)) {
-                        fileName = fileUrl + File.separator + localBundleName;
-                    } else {
-                        fileName = localBundleName;
-                    }
+                    fileName = fileName(localBundleName);
                     fis = new FileInputStream(fileName);
                 }
-                p.load(fis);
             }
+            return BundleCache.read(fis);
         } catch (IOException ex) {
             throw new TemplateException(ignoreException("Failed to load bundle at [" + fileName + "] " + ex.getMessage(), ex));
+        } finally {
+            try {
+                if (fis != null) {
+                    fis.close();
+                }
+            } catch (IOException io) {
+            }
         }
-        if (p.isEmpty()) {
-            return null;
+    }
+
+    private String fileName(String localName) {
+        if ((fileUrl != null) && (fileUrl.trim().length() > 0)) {
+            return fileUrl + File.separator + localName;
         }
-        return p;
+        return localName;
+    }
+
+    /*
+    The resolved location of a template or bundle. Used as the cache key so it
+    must follow the same rules as load().
+     */
+    private String location(String localName) {
+        if (loadViaUrl) {
+            return fileUrl + "/" + localName;
+        }
+        if (localName.startsWith(RESOURCE_PREFIX)) {
+            return localName;
+        }
+        return fileLocation(new File(fileName(localName)));
+    }
+
+    /*
+    The location of a template or bundle file. The path is made absolute and
+    normalised so the same file always has the same key (the TemplateWatcher
+    builds its keys the same way).
+     */
+    static String fileLocation(File file) {
+        return FILE_PREFIX + file.toPath().toAbsolutePath().normalize();
     }
 
     private byte[] load(String localTemplateName) throws TemplateException {
@@ -745,11 +1750,7 @@ public class Template {
                         throw new TemplateException(ignoreException("Failed to get input stream for [" + fileName + "]"));
                     }
                 } else {
-                    if ((fileUrl != null) && (fileUrl.trim().length() > 0)) {
-                        fileName = fileUrl + File.separator + localTemplateName;
-                    } else {
-                        fileName = localTemplateName;
-                    }
+                    fileName = fileName(localTemplateName);
                     fis = new FileInputStream(fileName);
                 }
             }
@@ -766,11 +1767,18 @@ public class Template {
         }
     }
 
+    /**
+     * Read ALL of the stream (see SourceReader) and close it. All templates,
+     * including files (as a FileInputStream), are loaded through here so a
+     * sub class can change how the bytes are read.
+     *
+     * @param fis The template content
+     * @param fileName The name for error messages
+     * @return The template bytes
+     */
     protected byte[] loadFromStream(InputStream fis, String fileName) {
         try {
-            byte[] targetArray = new byte[fis.available()];
-            fis.read(targetArray);
-            return targetArray;
+            return SourceReader.read(fis);
         } catch (IOException io) {
             throw new TemplateException(ignoreException("Failed to read input stream for [" + fileName + "] " + io.getMessage(), io));
         } finally {
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process wide cache of loaded (compiled) templates.<br/>
+ * Templates are keyed by their resolved location. For example
+ * <b>file:/abs/path/page.html</b>, <b>classpath:/page.html</b> or the full URL
+ * for templates loaded via a URL.<br/>
+ * All Template constructors and the <b>template#</b>, <b>template?</b> and
+ * <b>repeat#</b> tags load via this cache so a template is read from its
+ * source once and then shared.<br/>
+ * When the cache holds more than <b>maxSize</b> templates one that has not
+ * been used recently is evicted. The templates are queued in the order they
+ * were cached. The template at the head is evicted unless it has been used
+ * since it was last queued, then it is queued again (a second chance or
+ * "clock" approximation of least recently used). A hit only sets a flag so
+ * it takes no lock and an eviction does not scan the cache. A maxSize of 0
+ * disables caching.<br/>
+ * Lookups do not lock. Loading is done outside of any lock so two threads
+ * missing on the same template at the same time may both load it, the first
+ * one cached wins.<br/>
+ * Classpath templates that were pre-compiled by the build are taken from the
+ * index written by the {@link TemplateCompiler}.<br/>
+ * A cached template can be replaced by reload() (see {@link TemplateWatcher}).
+ * Template instances see the new version on their next parse.<br/>
+ * With setStrictNesting(true) a template whose ifDef#, ifUnDef# and fi# tags
+ * do not nest fails to load.
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class TemplateCache {
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    private static final String CLASSPATH = "classpath:";
+    private static final TemplateCache INSTANCE = new TemplateCache(DEFAULT_MAX_SIZE);
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    /*
+    The cached entries, oldest chance first. Guarded by evictionLock.
+     */
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final Object evictionLock = new Object();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    /*
+    Changed whenever a cached program is added, replaced or removed.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile int maxSize;
+    private volatile int promoteAfter;
+    private volatile boolean strictNesting;
+
+    private TemplateCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static TemplateCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a template from the cache. If not cached then load it.
+     *
+     * @param location The resolved location of the template
+     * @param loader Loads and compiles the template if it is not cached
+     * @return The cache entry holding the compiled template
+     */
+    Entry get(String location, Supplier<TemplateProgram> loader) {
+        Entry entry = entries.get(location);
+        if (entry != null) {
+            entry.used();
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        long start = System.nanoTime();
+        TemplateProgram program = location.startsWith(CLASSPATH) ? TemplateIndex.find(location) : null;
+        if (program == null) {
+            program = loader.get();
+        }
+        checkNesting(location, program);
+        entry = new Entry(location, program);
+        loaded(location, start);
+        if (maxSize > 0) {
+            Entry existing = entries.putIfAbsent(location, entry);
+            if (existing != null) {
+                return existing;
+            }
+            added(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Add an already compiled template (see {@link TemplatePack}). A template
+     * that is already cached is kept.
+     *
+     * @param location The resolved location of the template
+     * @param program The compiled template
+     */
+    void put(String location, TemplateProgram program) {
+        if (maxSize > 0) {
+            Entry entry = new Entry(location, program);
+            if (entries.putIfAbsent(location, entry) == null) {
+                added(entry);
+            }
+        }
+    }
+
+    /**
+     * Replace a cached template with a newly loaded version. Threads already
+     * parsing the old version finish with it.
+     *
+     * @param location The resolved location of the template
+     * @param loader Loads and compiles the new version
+     * @return false if the template is not cached (nothing is loaded)
+     */
+    boolean reload(String location, Supplier<TemplateProgram> loader) {
+        Entry entry = entries.get(location);
+        if (entry == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        TemplateProgram program = loader.get();
+        checkNesting(location, program);
+        entry.setProgram(program);
+        generation.incrementAndGet();
+        reloads.increment();
+        loaded(location, start);
+        return true;
+    }
+
+    private void checkNesting(String location, TemplateProgram program) {
+        if (strictNesting && (program.nestingError != null)) {
+            throw new TemplateException(Template.ignoreException("Template [" + location + "] " + program.nestingError));
+        }
+    }
+
+    private static void loaded(String location, long start) {
+        TemplateMetrics m = Template.getMetrics();
+        if (m != null) {
+            m.templateLoaded(location, System.nanoTime() - start);
+        }
+    }
+
+    boolean contains(String location) {
+        return entries.containsKey(location);
+    }
+
+    Set<String> locations() {
+        return entries.keySet();
+    }
+
+    private void added(Entry entry) {
+        generation.incrementAndGet();
+        synchronized (evictionLock) {
+            queue.addLast(entry);
+        }
+        evict();
+        TemplateWatcher.getInstance().watch(entry.location);
+    }
+
+    /*
+    Each entry passed over has its used flag cleared, so one sweep of the
+    queue always finds one to evict. An entry that is no longer the cached
+    one (removed or cleared) is dropped from the queue.
+     */
+    private void evict() {
+        if (entries.size() <= maxSize) {
+            return;
+        }
+        synchronized (evictionLock) {
+            int chances = queue.size();
+            while ((entries.size() > maxSize) && !queue.isEmpty()) {
+                Entry e = queue.pollFirst();
+                if (entries.get(e.location) != e) {
+                    continue;
+                }
+                if (e.used && (chances-- > 0)) {
+                    e.used = false;
+                    queue.addLast(e);
+                } else if (entries.remove(e.location, e)) {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize The maximum number of templates to hold. 0 to disable
+     * caching
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize cannot be negative");
+        }
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public int getPromoteAfter() {
+        return promoteAfter;
+    }
+
+    /**
+     * Render templates that are parsed often with a {@link TemplateRenderer},
+     * a closure-tree interpreter. The result is the same as the normal parse
+     * but it runs as a tree of pre-bound steps: literals are byte slices,
+     * names and error texts are resolved and ifDef# ... fi# blocks are skipped
+     * in one step. No code is generated. See PromotionBenchmark.<br/>
+     * Templates whose ifDef#, ifUnDef# and fi# tags are not balanced are never
+     * promoted.
+     *
+     * @param renders Promote a template after it has been parsed this many
+     * times. 0 to never promote (the default)
+     */
+    public void setPromoteAfter(int renders) {
+        if (renders < 0) {
+            throw new IllegalArgumentException("renders cannot be negative");
+        }
+        this.promoteAfter = renders;
+    }
+
+    public boolean isStrictNesting() {
+        return strictNesting;
+    }
+
+    /**
+     * Templates whose ifDef#, ifUnDef# and fi# tags do not nest are rendered
+     * as they always have been: a fi# without an ifDef# is ignored and a block
+     * without a fi# runs to the end of the template. In strict mode they are
+     * not loaded, a TemplateException giving the line is thrown instead.
+     * Templates taken from the build index are checked too. Templates added
+     * by a {@link TemplatePack} are checked by the {@link TemplateCompiler}.
+     *
+     * @param strictNesting True to refuse to load templates with badly nested
+     * ifDef#, ifUnDef# and fi# tags. False by default
+     */
+    public void setStrictNesting(boolean strictNesting) {
+        this.strictNesting = strictNesting;
+    }
+
+    /**
+     * Reads the pre-compiled index (see {@link TemplateCompiler}) if it has not
+     * been read yet.
+     *
+     * @return Why packs in the index could not be read (their templates are
+     * loaded from source). Empty if there were no problems
+     */
+    public List<String> getIndexProblems() {
+        return TemplateIndex.problems();
+    }
+
+    public long getPromotions() {
+        return promotions.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getReloads() {
+        return reloads.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove a single template so it is re-loaded on next use.
+     *
+     * @param location The resolved location of the template
+     */
+    public void remove(String location) {
+        Entry entry = entries.remove(location);
+        if (entry != null) {
+            generation.incrementAndGet();
+            synchronized (evictionLock) {
+                queue.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Remove all templates. The counters are not reset.
+     */
+    public void clear() {
+        synchronized (evictionLock) {
+            entries.clear();
+            queue.clear();
+        }
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Anything worked out from more than one cached program (such as
+     * Template.isParallelSafe()) is only valid while this is unchanged.
+     *
+     * @return The generation of the cache or -1 if nothing is cached (each
+     * template is loaded again every time it is used)
+     */
+    int generation() {
+        return (maxSize == 0) ? -1 : generation.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TemplateCache:size=" + size() + " max=" + maxSize + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions() + " reloads=" + getReloads() + " promotions=" + getPromotions();
+    }
+
+    /**
+     * Holds the current version of a cached template.
+     */
+    static final class Entry {
+
+        volatile TemplateProgram program;
+        /*
+        null if not cached.
+         */
+        private final String location;
+        /*
+        Set by a hit, cleared when the entry is passed over for eviction.
+         */
+        private volatile boolean used;
+        private volatile int outputSize;
+        private volatile TemplateRenderer renderer;
+        private volatile boolean promoted;
+        private final AtomicInteger renders = new AtomicInteger();
+
+        Entry(TemplateProgram program) {
+            this(null, program);
+        }
+
+        private Entry(String location, TemplateProgram program) {
+            this.location = location;
+            this.program = program;
+        }
+
+        /*
+        Only written when it changes so hits from many threads do not keep
+        invalidating the cache line.
+         */
+        private void used() {
+            if (!used) {
+                used = true;
+            }
+        }
+
+        synchronized void setProgram(TemplateProgram program) {
+            this.program = program;
+            this.renderer = null;
+            this.promoted = false;
+            this.renders.set(0);
+        }
+
+        /**
+         * Count a parse and promote the program when it is hot (see
+         * setPromoteAfter()).
+         *
+         * @param program The program about to be parsed
+         * @return The renderer for the program or null to interpret it
+         */
+        TemplateRenderer renderer(TemplateProgram program) {
+            TemplateRenderer r = renderer;
+            if (r != null) {
+                return (r.program == program) ? r : null;
+            }
+            int after = INSTANCE.promoteAfter;
+            if ((after == 0) || promoted || (program != this.program)) {
+                return null;
+            }
+            if (renders.incrementAndGet() < after) {
+                return null;
+            }
+            r = TemplateRenderer.compile(program);
+            /*
+            Only once per program. A renderer built from a program that has
+            since been re-loaded is thrown away so the new one can be promoted.
+             */
+            synchronized (this) {
+                if (promoted || (program != this.program)) {
+                    return null;
+                }
+                promoted = true;
+                if (r != null) {
+                    renderer = r;
+                    INSTANCE.promotions.increment();
+                }
+            }
+            return r;
+        }
+
+        /**
+         * @return The size to start the output buffer at, from the recent
+         * output sizes
+         */
+        int sizeHint() {
+            int size = outputSize;
+            if (size == 0) {
+                return TemplateOutput.ByteOutput.DEFAULT_SIZE;
+            }
+            return Math.max(256, size + (size >> 3));
+        }
+
+        /*
+        A moving average (each new size has a weight of 1/4). Updates from
+        different threads may be lost which does not matter for a hint.
+         */
+        void recordSize(int size) {
+            int avg = outputSize;
+            outputSize = (avg == 0) ? size : avg - (avg >> 2) + (size >> 2);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import template.TemplateProgram.Instruction;
+
+/**
+ * Checks and pre-compiles the templates in resource directories. Run by the
+ * build (see compileTemplates in build.gradle).<br/>
+ * Each template is checked for:<br/>
+ * - An unterminated %{ or an empty %{}<br/>
+ * - ifDef# or ifUnDef# without a matching fi# (and fi# without an ifDef#)<br/>
+ * - A template# or bundle# that names a file that does not exist<br/>
+ * The templates are written to a {@link TemplatePack} as classpath
+ * templates. The pack is put in the jar as INDEX so templates loaded from the
+ * classpath are never scanned at run time.<br/>
+ * <br/>
+ * <code>java template.TemplateCompiler [--pack file] [--warn-only]
+ * [--extensions txt,html] dir...</code><br/>
+ * The exit code is 1 if any errors were found (unless --warn-only).
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class TemplateCompiler {
+
+    /**
+     * Where the pack is found on the classpath.
+     */
+    public static final String INDEX = "META-INF/template/templates" + TemplatePack.EXTENSION;
+    public static final String DEFAULT_EXTENSIONS = "txt,html,htm,xml,json,tpl,tmpl";
+    private static final String CLASSPATH = "classpath:";
+
+    private final List<File> roots = new ArrayList<>();
+    private final Set<String> extensions = new HashSet<>();
+    private final Map<String, byte[]> sources = new LinkedHashMap<>();
+    private final List<String> errors = new ArrayList<>();
+
+    /**
+     * @param roots The resource directories
+     * @param extensions The file extensions (without the '.') of templates
+     */
+    public TemplateCompiler(List<File> roots, String extensions) {
+        this.roots.addAll(roots);
+        this.extensions.addAll(Arrays.asList(extensions.toLowerCase().split(",")));
+    }
+
+    public static void main(String[] args) throws IOException {
+        File pack = null;
+        boolean warnOnly = false;
+        String extensions = DEFAULT_EXTENSIONS;
+        List<File> roots = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--pack")) {
+                pack = new File(args[++i]);
+            } else if (args[i].equals("--warn-only")) {
+                warnOnly = true;
+            } else if (args[i].equals("--extensions")) {
+                extensions = args[++i];
+            } else {
+                roots.add(new File(args[i]));
+            }
+        }
+        TemplateCompiler compiler = new TemplateCompiler(roots, extensions);
+        List<String> errors = compiler.check();
+        for (String error : errors) {
+            System.err.println((warnOnly ? "WARNING: " : "ERROR: ") + error);
+        }
+        System.out.println("TemplateCompiler: " + compiler.sources.size() + " templates, " + errors.size() + " problems");
+        if (!errors.isEmpty() && !warnOnly) {
+            System.exit(1);
+        }
+        if (pack != null) {
+            pack.getAbsoluteFile().getParentFile().mkdirs();
+            try (OutputStream out = new FileOutputStream(pack)) {
+                compiler.writePack(out);
+            }
+        }
+    }
+
+    /**
+     * Find and check all of the templates.
+     *
+     * @return The problems found. Each one starts with the file name and line
+     * @throws IOException If a template cannot be read
+     */
+    public List<String> check() throws IOException {
+        sources.clear();
+        errors.clear();
+        for (File root : roots) {
+            scan(root, root);
+        }
+        return errors;
+    }
+
+    /**
+     * Write the templates found by check() as a pack of classpath templates.
+     *
+     * @param out Where the pack is written
+     */
+    public void writePack(OutputStream out) {
+        TemplatePack.write(out, sources);
+    }
+
+    private void scan(File root, File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                scan(root, file);
+            } else if (isTemplate(file)) {
+                byte[] source = SourceReader.read(file);
+                String name = root.toURI().relativize(file.toURI()).getPath();
+                sources.put(CLASSPATH + "/" + name, source);
+                check(file, TemplateProgram.compile(source));
+            }
+        }
+    }
+
+    private boolean isTemplate(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0) && extensions.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    private void check(File file, TemplateProgram program) {
+        int position = 0;
+        for (Instruction ins : program.instructions) {
+            switch (ins.op) {
+                case TemplateProgram.LITERAL:
+                    position = ins.offset + ins.length;
+                    break;
+                case TemplateProgram.UNTERMINATED:
+                    error(file, program, position, "Unterminated %{");
+                    break;
+                case TemplateProgram.EMPTY:
+                    error(file, program, position, "Empty %{}");
+                    break;
+                case TemplateProgram.INC:
+                    if (!exists(file, ins.name)) {
+                        error(file, program, position, "template#" + ins.name + " not found");
+                    }
+                    break;
+                case TemplateProgram.BUNDLE_REF:
+                    if (!exists(file, ins.name)) {
+                        error(file, program, position, "bundle#" + ins.name + " not found");
+                    }
+                    break;
+                default:
+            }
+        }
+        /*
+        The same test as TemplateCache.setStrictNesting(). It gives the line.
+         */
+        if (program.nestingError != null) {
+            errors.add(file.getPath() + ": " + program.nestingError);
+        }
+    }
+
+    /*
+    The same template can be loaded from the classpath or as a file so a
+    reference is found if it exists next to the template, relative to the
+    working directory or (for classpath: names) in any of the roots.
+     */
+    private boolean exists(File template, String name) {
+        if (name.startsWith(CLASSPATH)) {
+            String path = name.substring(CLASSPATH.length());
+            for (File root : roots) {
+                if (new File(root, path).isFile()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return new File(template.getParentFile(), name).isFile() || new File(name).isFile();
+    }
+
+    private void error(File file, TemplateProgram program, int position, String message) {
+        errors.add(file.getPath() + ":" + TemplateProgram.line(program.text, position) + ": " + message);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The classpath templates pre-compiled by the build (see
+ * {@link TemplateCompiler}).<br/>
+ * Every TemplateCompiler.INDEX pack on the classpath is read the first time
+ * a classpath template is not found in the {@link TemplateCache}. A pack that
+ * cannot be read is skipped and the reason kept (see
+ * TemplateCache.getIndexProblems()). Its templates are loaded from source.
+ * <br/>
+ * A template whose resource is in the same jar (or directory) as the pack
+ * was compiled with it so it is used as it is. Its source is not read. A
+ * template found somewhere else on the classpath (a jar earlier on the
+ * classpath that replaces it) has its source read and its hash checked as for
+ * TemplatePack.load(). If the source has changed the template is compiled
+ * from it as normal.<br/>
+ * An entry is dropped from the index once it has been handed to the cache
+ * so its program is not held twice. If the cache evicts it, it is compiled
+ * from source the next time.
+ *
+ * @version $Rev: $ $Date: $
+ */
+final class TemplateIndex {
+
+    private static final String CLASSPATH = "classpath:";
+
+    private TemplateIndex() {
+    }
+
+    /*
+    Loaded by the JVM on first use only
+     */
+    private static final class Holder {
+
+        private static final List<String> PROBLEMS = new ArrayList<>();
+        private static final Map<String, Indexed> ENTRIES = load(resources(PROBLEMS), PROBLEMS);
+    }
+
+    /*
+    A packed template and the root of the jar (or directory) its pack was
+    found in. root is null if the pack was not found as INDEX.
+     */
+    static final class Indexed {
+
+        final TemplatePack.Entry entry;
+        final String root;
+
+        private Indexed(TemplatePack.Entry entry, String root) {
+            this.entry = entry;
+            this.root = root;
+        }
+    }
+
+    /**
+     * @param location A classpath template location (classpath:/a/b.html)
+     * @return The pre-compiled program or null if it is not in the index or
+     * its source has changed
+     */
+    static TemplateProgram find(String location) {
+        Indexed indexed = Holder.ENTRIES.remove(location);
+        if (indexed == null) {
+            return null;
+        }
+        return verified(indexed, Template.class.getResource(location.substring(CLASSPATH.length())));
+    }
+
+    static int size() {
+        return Holder.ENTRIES.size();
+    }
+
+    /**
+     * @return Why packs could not be read. Empty if they all were
+     */
+    static List<String> problems() {
+        return Collections.unmodifiableList(Holder.PROBLEMS);
+    }
+
+    /*
+    The packed program if the resource it was compiled from is in the same
+    place as the pack, has the same hash or is no longer there.
+     */
+    static TemplateProgram verified(Indexed indexed, URL resource) {
+        TemplatePack.Entry entry = indexed.entry;
+        if (resource == null) {
+            return entry.program;
+        }
+        if ((indexed.root != null) && resource.toString().equals(indexed.root + entry.name.substring(CLASSPATH.length() + 1))) {
+            return entry.program;
+        }
+        byte[] source;
+        try (InputStream in = resource.openStream()) {
+            source = SourceReader.read(in);
+        } catch (IOException ex) {
+            return null;
+        }
+        return Arrays.equals(entry.hash, TemplatePack.hash(source)) ? entry.program : null;
+    }
+
+    private static Enumeration<URL> resources(List<String> problems) {
+        try {
+            ClassLoader loader = TemplateIndex.class.getClassLoader();
+            return (loader == null) ? ClassLoader.getSystemResources(TemplateCompiler.INDEX) : loader.getResources(TemplateCompiler.INDEX);
+        } catch (IOException ex) {
+            problems.add(TemplateCompiler.INDEX + ": " + ex.getMessage());
+            return Collections.emptyEnumeration();
+        }
+    }
+
+    /*
+    Each pack is read on its own so one bad pack does not lose the others.
+    The first pack on the classpath holding a template wins.
+     */
+    static Map<String, Indexed> load(Enumeration<URL> urls, List<String> problems) {
+        Map<String, Indexed> entries = new ConcurrentHashMap<>();
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            String path = url.toString();
+            String root = path.endsWith(TemplateCompiler.INDEX) ? path.substring(0, path.length() - TemplateCompiler.INDEX.length()) : null;
+            try (InputStream in = url.openStream()) {
+                for (TemplatePack.Entry entry : TemplatePack.read(in)) {
+                    if (entry.name.startsWith(CLASSPATH + "/")) {
+                        entries.putIfAbsent(entry.name, new Indexed(entry, root));
+                    }
+                }
+            } catch (IOException | TemplateException ex) {
+                problems.add(url + ": " + ex.getMessage());
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+/**
+ * Told about renders, includes, repeats, loads and unresolved values.<br/>
+ * Install an implementation with Template.setMetrics(). None is installed by
+ * default. {@link DefaultTemplateMetrics} records everything in LongAdders and
+ * has a snapshot() that can be scraped.<br/>
+ * Methods are called on the rendering (or loading) thread, often by many
+ * threads at once, so they must be thread safe and quick. They must not throw.
+ * <br/>
+ * Templates are identified by their resolved location (see
+ * {@link TemplateCache}). Templates created by the static Template.parse(String,
+ * Map) have no location and are not reported.
+ *
+ * @version $Rev: $ $Date: $
+ */
+public interface TemplateMetrics {
+
+    /**
+     * A parse or render of a template has finished. Also called for each
+     * <b>template#</b> or <b>template?</b> include and each <b>repeat#</b> row,
+     * as a render of the included or row template.<br/>
+     * The time is inclusive: it contains the time of the templates rendered
+     * inside it. The time of an include or row is therefore counted both for
+     * the included template and for the template that included it. Only add
+     * up the times of top level templates.
+     *
+     * @param location The template
+     * @param nanos How long the render took
+     * @param size The bytes (chars for an Appendable) written
+     */
+    void rendered(String location, long nanos, long size);
+
+    /**
+     * A template included another by <b>template#</b> or <b>template?</b>.
+     *
+     * @param location The including template
+     * @param included The included template
+     */
+    void included(String location, String included);
+
+    /**
+     * A template rendered a <b>repeat#</b> list.
+     *
+     * @param location The template holding the repeat# tag
+     * @param repeated The row template
+     * @param rows The number of rows in the list
+     */
+    void repeated(String location, String repeated, int rows);
+
+    /**
+     * A template was loaded and compiled (a cache miss or re-load).
+     *
+     * @param location The template
+     * @param nanos How long the load took
+     */
+    void templateLoaded(String location, long nanos);
+
+    /**
+     * A bundle was loaded (a cache miss or re-load).
+     *
+     * @param location The bundle
+     * @param nanos How long the load took
+     */
+    void bundleLoaded(String location, long nanos);
+
+    /**
+     * A value used by a template could not be found. Values in a suspended
+     * ifDef#/ifUnDef# block are not reported.
+     *
+     * @param location The template
+     * @param name The name of the value
+     */
+    void unresolved(String location, String name);
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import template.TemplateProgram.Instruction;
+
+/**
+ * Where the resultant text of a parse is written.<br/>
+ * <b>CharOutput</b> writes chars to any Appendable.<br/>
+ * <b>ByteOutput</b> writes UTF-8 bytes. Literal text is copied from the
+ * template as whole byte slices and values are encoded to UTF-8 as they are
+ * written. It either collects the bytes (for the String API) or passes them on
+ * to an OutputStream each time its buffer fills. Its buffer can be taken from
+ * the {@link BufferPool}.<br/>
+ * Values are written by {@link ValueWriters}. Numbers are written as digits
+ * straight in to the output.
+ *
+ * @version $Rev: $ $Date: $
+ */
+abstract class TemplateOutput implements ValueOutput {
+
+    static final String MIN_LONG = Long.toString(Long.MIN_VALUE);
+
+    /**
+     * Write a LITERAL instruction.
+     *
+     * @param text The template text the instruction was compiled from
+     * @param ins The LITERAL instruction
+     * @throws IOException
+     */
+    abstract void writeLiteral(byte[] text, Instruction ins) throws IOException;
+
+    abstract void write(String s) throws IOException;
+
+    /**
+     * Write s with the chars that need it escaped.
+     *
+     * @param s The text
+     * @param escaper A built in filter
+     * @throws IOException
+     */
+    abstract void write(CharSequence s, ValueFilters.Escaper escaper) throws IOException;
+
+    /*
+    The number of digits in n. n must not be negative.
+     */
+    static int digits(long n) {
+        long p = 10;
+        int d = 1;
+        while ((d < 19) && (n >= p)) {
+            p *= 10;
+            d++;
+        }
+        return d;
+    }
+
+    /**
+     * A new output of the same kind to collect part of the text separately
+     * (for example on another thread). See append().
+     *
+     * @return An empty output that collects all of its text
+     */
+    abstract TemplateOutput segment();
+
+    /**
+     * Write all of the text collected by a segment.
+     *
+     * @param segment An output created by segment()
+     * @throws IOException
+     */
+    abstract void append(TemplateOutput segment) throws IOException;
+
+    /**
+     * @return The bytes (or chars) written so far, including any that have
+     * been passed on
+     */
+    abstract long written();
+
+    /**
+     * Give back any pooled buffer. Used for a segment that is dropped or has
+     * been appended. This output must not be written to again. Releasing it
+     * twice does nothing.
+     */
+    void release() {
+    }
+
+    static final class CharOutput extends TemplateOutput {
+
+        private final Appendable out;
+        private long written;
+        private char[] scratch;
+
+        CharOutput(Appendable out) {
+            this.out = out;
+        }
+
+        @Override
+        void writeLiteral(byte[] text, Instruction ins) throws IOException {
+            out.append(ins.name);
+            written += ins.name.length();
+        }
+
+        @Override
+        void write(String s) throws IOException {
+            out.append(s);
+            written += s.length();
+        }
+
+        @Override
+        public void write(char c) throws IOException {
+            out.append(c);
+            written++;
+        }
+
+        @Override
+        public void write(CharSequence s) throws IOException {
+            out.append(s);
+            written += s.length();
+        }
+
+        @Override
+        public void write(CharSequence s, int start, int end) throws IOException {
+            out.append(s, start, end);
+            written += end - start;
+        }
+
+        @Override
+        void write(CharSequence s, ValueFilters.Escaper escaper) throws IOException {
+            escaper.writeRuns(s, this);
+        }
+
+        @Override
+        public void write(long n) throws IOException {
+            if (n == Long.MIN_VALUE) {
+                write(MIN_LONG);
+                return;
+            }
+            if (scratch == null) {
+                scratch = new char[20];
+            }
+            long v = (n < 0) ? -n : n;
+            int pos = scratch.length;
+            do {
+                scratch[--pos] = (char) ('0' + (v % 10));
+                v /= 10;
+            } while (v != 0);
+            if (n < 0) {
+                scratch[--pos] = '-';
+            }
+            for (int i = pos; i < scratch.length; i++) {
+                out.append(scratch[i]);
+            }
+            written += scratch.length - pos;
+        }
+
+        @Override
+        TemplateOutput segment() {
+            return new CharOutput(new StringBuilder());
+        }
+
+        @Override
+        void append(TemplateOutput segment) throws IOException {
+            CharOutput chars = (CharOutput) segment;
+            out.append((StringBuilder) chars.out);
+            written += chars.written;
+        }
+
+        @Override
+        long written() {
+            return written;
+        }
+    }
+
+    static final class ByteOutput extends TemplateOutput {
+
+        static final int DEFAULT_SIZE = 8192;
+        /*
+        Room for any long
+         */
+        private static final int MIN_SIZE = 32;
+
+        private final OutputStream target;
+        private final ChunkTarget chunks;
+        private final int chunkSize;
+        private byte[] buf;
+        private int count;
+        private long passedOn;
+
+        /**
+         * Collect all of the output. See toString().
+         */
+        ByteOutput(int initialSize) {
+            this(null, initialSize);
+        }
+
+        /**
+         * Pass the output on to target each time the buffer is full.
+         */
+        ByteOutput(OutputStream target, int size) {
+            this(target, new byte[Math.max(size, MIN_SIZE)]);
+        }
+
+        private ByteOutput(OutputStream target, byte[] buf) {
+            this.target = target;
+            this.chunks = null;
+            this.chunkSize = 0;
+            this.buf = buf;
+            this.count = 0;
+        }
+
+        private ByteOutput(ChunkTarget chunks, int chunkSize, byte[] buf) {
+            this.target = null;
+            this.chunks = chunks;
+            this.chunkSize = chunkSize;
+            this.buf = buf;
+            this.count = 0;
+        }
+
+        /**
+         * An output with a buffer from the BufferPool. Call release() when
+         * done with it.
+         *
+         * @param target Where to pass the output on to. null to collect it
+         * @param size The minimum buffer size
+         */
+        static ByteOutput pooled(OutputStream target, int size) {
+            return new ByteOutput(target, BufferPool.acquire(Math.max(size, MIN_SIZE)));
+        }
+
+        /**
+         * An output that renders straight in to chunks of exactly chunkSize
+         * bytes. Each full chunk is handed to target and not written again.
+         * Call finish() to pass on the last (short) chunk.<br/>
+         * The buffer is MIN_SIZE bytes longer than a chunk so a char or number
+         * can always be written in one go. The few bytes written past the end
+         * of a chunk are moved to the start of the next one.
+         *
+         * @param target Where each chunk is passed on to
+         * @param chunkSize The size of a chunk
+         */
+        static ByteOutput chunked(ChunkTarget target, int chunkSize) {
+            return new ByteOutput(target, chunkSize, new byte[chunkSize + MIN_SIZE]);
+        }
+
+        @Override
+        void release() {
+            if (buf != null) {
+                BufferPool.release(buf);
+                buf = null;
+            }
+        }
+
+        @Override
+        void writeLiteral(byte[] text, Instruction ins) throws IOException {
+            write(text, ins.offset, ins.length);
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            if (len > buf.length - count) {
+                if (chunks != null) {
+                    writeChunked(b, off, len);
+                    return;
+                }
+                if (target != null) {
+                    flushBuffer();
+                    if (len > buf.length) {
+                        target.write(b, off, len);
+                        passedOn += len;
+                        return;
+                    }
+                } else {
+                    grow(count + len);
+                }
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        @Override
+        void write(String s) throws IOException {
+            encode(s, 0, s.length());
+        }
+
+        @Override
+        public void write(CharSequence s) throws IOException {
+            encode(s, 0, s.length());
+        }
+
+        @Override
+        public void write(CharSequence s, int start, int end) throws IOException {
+            encode(s, start, end);
+        }
+
+        /*
+        One pass: each char is either escaped or encoded as it is copied. An
+        escaped ASCII char is at most 6 bytes.
+         */
+        @Override
+        void write(CharSequence s, ValueFilters.Escaper escaper) throws IOException {
+            byte[][] escaped = escaper.asciiBytes;
+            int end = s.length();
+            for (int i = 0; i < end; i++) {
+                if (buf.length - count < 8) {
+                    makeRoom(8);
+                }
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    byte[] b = escaped[c];
+                    if (b == null) {
+                        buf[count++] = (byte) c;
+                    } else {
+                        for (int j = 0; j < b.length; j++) {
+                            buf[count++] = b[j];
+                        }
+                    }
+                } else if (escaper.escapedAbove(c)) {
+                    i = escaper.escapeAbove(s, i, this);
+                } else {
+                    i = encodeAbove(s, c, i, end);
+                }
+            }
+        }
+
+        @Override
+        public void write(char c) throws IOException {
+            if (buf.length - count < 3) {
+                makeRoom(3);
+            }
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        /*
+        The digits are written backwards from the end of the number.
+         */
+        @Override
+        public void write(long n) throws IOException {
+            if (n == Long.MIN_VALUE) {
+                encode(MIN_LONG, 0, MIN_LONG.length());
+                return;
+            }
+            long v = (n < 0) ? -n : n;
+            int size = (n < 0) ? digits(v) + 1 : digits(v);
+            if (buf.length - count < size) {
+                makeRoom(size);
+            }
+            int pos = count + size;
+            do {
+                buf[--pos] = (byte) ('0' + (v % 10));
+                v /= 10;
+            } while (v != 0);
+            if (n < 0) {
+                buf[--pos] = '-';
+            }
+            count += size;
+        }
+
+        private void encode(CharSequence s, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                if (buf.length - count < 4) {
+                    makeRoom(4);
+                }
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[count++] = (byte) c;
+                } else {
+                    i = encodeAbove(s, c, i, end);
+                }
+            }
+        }
+
+        /*
+        Encode the char c at i that is not ASCII. There must be room for 4
+        bytes. Returns the index of the last char used.
+         */
+        private int encodeAbove(CharSequence s, char c, int i, int end) {
+            if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && (i + 1 < end) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[count++] = (byte) (0xF0 | (cp >> 18));
+                    buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    /*
+                    Same as String.getBytes for a malformed surrogate
+                     */
+                    buf[count++] = '?';
+                }
+            } else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+            return i;
+        }
+
+        @Override
+        TemplateOutput segment() {
+            return pooled(null, DEFAULT_SIZE);
+        }
+
+        @Override
+        void append(TemplateOutput segment) throws IOException {
+            ByteOutput bytes = (ByteOutput) segment;
+            try {
+                write(bytes.buf, 0, bytes.count);
+            } finally {
+                bytes.release();
+            }
+        }
+
+        /*
+        size must not be more than MIN_SIZE
+         */
+        private void makeRoom(int size) throws IOException {
+            if (target != null) {
+                flushBuffer();
+            } else if (chunks != null) {
+                passChunks();
+            } else {
+                grow(count + size);
+            }
+        }
+
+        private void writeChunked(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (len > 0) {
+                    passChunks();
+                }
+            }
+        }
+
+        /*
+        Pass on every full chunk in the buffer. The rest (less than a chunk)
+        starts the next buffer.
+         */
+        private void passChunks() throws IOException {
+            int pos = 0;
+            while (count - pos >= chunkSize) {
+                chunks.chunk(buf, pos, chunkSize);
+                pos += chunkSize;
+                passedOn += chunkSize;
+            }
+            if (pos > 0) {
+                byte[] next = new byte[buf.length];
+                System.arraycopy(buf, pos, next, 0, count - pos);
+                buf = next;
+                count -= pos;
+            }
+        }
+
+        /**
+         * Pass on the full chunks and then the bytes left as a short chunk.
+         * This chunked output must not be used again.
+         */
+        void finish() throws IOException {
+            passChunks();
+            if (count > 0) {
+                chunks.chunk(buf, 0, count);
+                passedOn += count;
+                count = 0;
+            }
+            buf = null;
+        }
+
+        private void grow(int minSize) {
+            int newSize = Math.max(buf.length << 1, minSize);
+            byte[] newBuf = new byte[newSize];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                target.write(buf, 0, count);
+                passedOn += count;
+                count = 0;
+            }
+        }
+
+        /**
+         * Write any buffered bytes to the target and flush it.
+         */
+        void flush() throws IOException {
+            if (target != null) {
+                flushBuffer();
+                target.flush();
+            }
+        }
+
+        int size() {
+            return count;
+        }
+
+        @Override
+        long written() {
+            return passedOn + count;
+        }
+
+        /**
+         * @return The collected bytes decoded ONCE as UTF-8
+         */
+        @Override
+        public String toString() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Where a chunked output passes on its chunks.
+         */
+        interface ChunkTarget {
+
+            /**
+             * @param chunk Holds the chunk. It is not written again by the
+             * output
+             * @param offset The start of the chunk
+             * @param length The size of the chunk
+             */
+            void chunk(byte[] chunk, int offset, int length) throws IOException;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import template.TemplateProgram.Instruction;
+
+/**
+ * A pack of pre-compiled templates (a <b>.tplc</b> file) so a service can
+ * fill the {@link TemplateCache} at start up without scanning any template
+ * text.<br/>
+ * Each template in the pack is stored under the name that would be passed to
+ * new Template(name). This is either a classpath name (classpath:/a/b.html)
+ * or a file name relative to a base directory given when the pack is
+ * loaded.<br/>
+ * When a pack is loaded the source of each template is read and its SHA-256
+ * hash compared with the hash stored in the pack. If they differ the template
+ * is NOT loaded from the pack. It is compiled from the source when it is
+ * first used as normal. If the source does not exist the packed version is
+ * used.<br/>
+ * <br/>
+ * <code>
+ * TemplatePack.write(out, sources);<br/>
+ * TemplatePack.load(in, new File("templates"));<br/>
+ * </code>
+ * <br/>
+ * The format (all numbers are big endian, strings are
+ * DataOutput.writeUTF):<br/>
+ * <pre>
+ * header:       int magic 'TPLC', short version, int template count
+ * per template: UTF name, 32 bytes SHA-256 of the source,
+ *               int length + the source bytes,
+ *               literal pool:      int count, UTF each (names and values),
+ *               instructions:      int count, per instruction byte op then
+ *                                  LITERAL: int offset, int length (a slice
+ *                                  of the source) others: int name, int value
+ *                                  (pool indexes, -1 for none),
+ *               include references: int count, per reference byte op
+ *                                  (template#, repeat# or bundle#), int name
+ * </pre>
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class TemplatePack {
+
+    public static final String EXTENSION = ".tplc";
+    static final int MAGIC = 0x54504C43;
+    /*
+    2: %{name|filter} is a FILTERED_VAR. Older packs are not read (the
+    templates are loaded from source).
+     */
+    static final short VERSION = 2;
+    private static final String CLASSPATH = "classpath:";
+
+    private TemplatePack() {
+    }
+
+    /**
+     * Compile the templates and write them as a pack.
+     *
+     * @param out Where the pack is written. It is flushed but NOT closed
+     * @param sources The template source bytes keyed by template name
+     * @throws TemplateException If the pack cannot be written
+     */
+    public static void write(OutputStream out, Map<String, byte[]> sources) {
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(MAGIC);
+            data.writeShort(VERSION);
+            data.writeInt(sources.size());
+            for (Map.Entry<String, byte[]> source : sources.entrySet()) {
+                writeTemplate(data, source.getKey(), source.getValue(), TemplateProgram.compile(source.getValue()));
+            }
+            data.flush();
+        } catch (IOException ex) {
+            throw new TemplateException(Template.ignoreException("Failed to write template pack " + ex.getMessage(), ex), ex);
+        }
+    }
+
+    /**
+     * Add the templates in a pack to the TemplateCache.
+     *
+     * @param in The pack. It is NOT closed
+     * @param baseDir The directory that file template names are relative to
+     * @return The number of templates loaded. Templates whose source has
+     * changed since the pack was written are not counted
+     * @throws TemplateException If the pack cannot be read or is not a pack
+     */
+    public static int load(InputStream in, File baseDir) {
+        int loaded = 0;
+        for (Entry entry : read(in)) {
+            String location;
+            byte[] source;
+            try {
+                if (entry.name.startsWith(CLASSPATH)) {
+                    location = entry.name;
+                    source = readResource(entry.name.substring(CLASSPATH.length()));
+                } else {
+                    File file = new File(baseDir, entry.name);
+                    location = Template.fileLocation(file);
+                    source = file.isFile() ? SourceReader.read(file) : null;
+                }
+            } catch (IOException ex) {
+                continue;
+            }
+            if ((source == null) || Arrays.equals(entry.hash, hash(source))) {
+                TemplateCache.getInstance().put(location, entry.program);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Read all of the templates in a pack.
+     *
+     * @param in The pack. It is NOT closed
+     * @return The templates in the order they were written
+     */
+    static List<Entry> read(InputStream in) {
+        try {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a template pack");
+            }
+            short version = data.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported template pack version " + version);
+            }
+            int count = data.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(readTemplate(data));
+            }
+            return entries;
+        } catch (IOException ex) {
+            throw new TemplateException(Template.ignoreException("Failed to read template pack " + ex.getMessage(), ex), ex);
+        }
+    }
+
+    private static void writeTemplate(DataOutputStream data, String name, byte[] source, TemplateProgram program) throws IOException {
+        data.writeUTF(name);
+        data.write(hash(source));
+        data.writeInt(program.text.length);
+        data.write(program.text);
+        List<String> pool = new ArrayList<>();
+        Map<String, Integer> poolIndex = new HashMap<>();
+        for (Instruction ins : program.instructions) {
+            if (ins.op != TemplateProgram.LITERAL) {
+                addToPool(ins.name, pool, poolIndex);
+                addToPool(ins.value, pool, poolIndex);
+            }
+        }
+        data.writeInt(pool.size());
+        for (String s : pool) {
+            data.writeUTF(s);
+        }
+        List<Instruction> references = new ArrayList<>();
+        data.writeInt(program.instructions.length);
+        for (Instruction ins : program.instructions) {
+            data.writeByte(ins.op);
+            if (ins.op == TemplateProgram.LITERAL) {
+                data.writeInt(ins.offset);
+                data.writeInt(ins.length);
+            } else {
+                data.writeInt(indexOf(ins.name, poolIndex));
+                data.writeInt(indexOf(ins.value, poolIndex));
+                if ((ins.op == TemplateProgram.INC) || (ins.op == TemplateProgram.REPEAT) || (ins.op == TemplateProgram.BUNDLE_REF)) {
+                    references.add(ins);
+                }
+            }
+        }
+        data.writeInt(references.size());
+        for (Instruction ins : references) {
+            data.writeByte(ins.op);
+            data.writeInt(indexOf(ins.name, poolIndex));
+        }
+    }
+
+    private static Entry readTemplate(DataInputStream data) throws IOException {
+        String name = data.readUTF();
+        byte[] hash = new byte[32];
+        data.readFully(hash);
+        byte[] text = new byte[data.readInt()];
+        data.readFully(text);
+        String[] pool = new String[data.readInt()];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = data.readUTF();
+        }
+        Instruction[] instructions = new Instruction[data.readInt()];
+        for (int i = 0; i < instructions.length; i++) {
+            int op = data.readByte();
+            if ((op < TemplateProgram.LITERAL) || (op > TemplateProgram.FILTERED_VAR)) {
+                throw new IOException("Template [" + name + "] has an unknown instruction " + op);
+            }
+            if (op == TemplateProgram.LITERAL) {
+                int offset = data.readInt();
+                int length = data.readInt();
+                if ((offset < 0) || (length < 0) || (offset + length > text.length)) {
+                    throw new IOException("Template [" + name + "] has a bad literal");
+                }
+                instructions[i] = new Instruction(op, new String(text, offset, length, StandardCharsets.UTF_8), null, offset, length);
+            } else {
+                instructions[i] = new Instruction(op, fromPool(pool, data.readInt(), name), fromPool(pool, data.readInt(), name));
+            }
+        }
+        Instruction[] references = new Instruction[data.readInt()];
+        for (int i = 0; i < references.length; i++) {
+            int op = data.readByte();
+            if ((op != TemplateProgram.INC) && (op != TemplateProgram.REPEAT) && (op != TemplateProgram.BUNDLE_REF)) {
+                throw new IOException("Template [" + name + "] has an unknown reference " + op);
+            }
+            references[i] = new Instruction(op, fromPool(pool, data.readInt(), name), null);
+        }
+        return new Entry(name, hash, TemplateProgram.of(text, instructions), references);
+    }
+
+    private static void addToPool(String s, List<String> pool, Map<String, Integer> poolIndex) {
+        if ((s != null) && !poolIndex.containsKey(s)) {
+            poolIndex.put(s, pool.size());
+            pool.add(s);
+        }
+    }
+
+    private static int indexOf(String s, Map<String, Integer> poolIndex) {
+        return (s == null) ? -1 : poolIndex.get(s);
+    }
+
+    private static String fromPool(String[] pool, int index, String name) throws IOException {
+        if (index == -1) {
+            return null;
+        }
+        if ((index < 0) || (index >= pool.length)) {
+            throw new IOException("Template [" + name + "] has a bad pool index " + index);
+        }
+        return pool[index];
+    }
+
+    /**
+     * @param name A classpath resource name (/a/b.html)
+     * @return The resource bytes or null if there is no such resource
+     */
+    static byte[] readResource(String name) throws IOException {
+        try (InputStream in = Template.class.getResourceAsStream(name)) {
+            return (in == null) ? null : SourceReader.read(in);
+        }
+    }
+
+    static byte[] hash(byte[] source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new TemplateException(Template.ignoreException("SHA-256 is not available", ex), ex);
+        }
+    }
+
+    /**
+     * A template read from a pack.
+     */
+    static final class Entry {
+
+        final String name;
+        final byte[] hash;
+        final TemplateProgram program;
+        /**
+         * The template#, repeat# and bundle# references (op and name only).
+         */
+        final Instruction[] references;
+
+        private Entry(String name, byte[] hash, TemplateProgram program, Instruction[] references) {
+            this.name = name;
+            this.hash = hash;
+            this.program = program;
+            this.references = references;
+        }
+    }
+}
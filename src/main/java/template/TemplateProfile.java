@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The result of Template.profile(): the resultant text and a tree showing
+ * where the time went.<br/>
+ * The root node is the template. Its children are the tags that did work, in
+ * the order they were first used:<br/>
+ * - <b>template#name</b> and <b>template?var=name</b> for each include.<br/>
+ * - <b>repeat#name</b> for each repeat. Its child is the row template, run
+ * once per row.<br/>
+ * - <b>bundle#name</b> and <b>bundle?var=name</b> for each bundle load.<br/>
+ * The same tag used more than once is one node with a call count. toString()
+ * prints the tree, one node per line:
+ * <pre>
+ * Template:page.html calls=1 incl=1530us excl=210us size=10240 misses=0
+ *   repeat#rows calls=1 incl=1320us excl=15us size=9800 misses=0
+ *     rows calls=100 incl=1305us excl=1305us size=9800 misses=2
+ * </pre>
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class TemplateProfile {
+
+    private final String text;
+    private final Node root;
+
+    TemplateProfile(String text, Node root) {
+        this.text = text;
+        this.root = root;
+    }
+
+    /**
+     * @return The resultant text. The same as parse()
+     */
+    public String getText() {
+        return text;
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        root.print(sb, 0);
+        return sb.toString();
+    }
+
+    /**
+     * One template or tag in the tree. Nodes are only changed by the thread
+     * doing the profile.
+     */
+    public static final class Node {
+
+        private final String name;
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private long calls;
+        private long nanos;
+        private long size;
+        private long misses;
+
+        Node(String name) {
+            this.name = name;
+        }
+
+        /*
+        The node for label under this one. Created the first time it is used.
+         */
+        Node child(String label) {
+            Node node = children.get(label);
+            if (node == null) {
+                node = new Node(label);
+                children.put(label, node);
+            }
+            return node;
+        }
+
+        void record(long nanos, long size) {
+            this.calls++;
+            this.nanos += nanos;
+            this.size += size;
+        }
+
+        void missed() {
+            misses++;
+        }
+
+        /**
+         * @return The template or tag (for example template#page.html)
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return The time of all calls including the children
+         */
+        public long getInclusiveNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return The time of all calls less the time of the children
+         */
+        public long getExclusiveNanos() {
+            long t = nanos;
+            for (Node child : children.values()) {
+                t -= child.nanos;
+            }
+            return Math.max(t, 0);
+        }
+
+        /**
+         * @return The bytes written by all calls including the children
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return Values that could not be found by this node (not its
+         * children)
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        public List<Node> getChildren() {
+            return new ArrayList<>(children.values());
+        }
+
+        private void print(StringBuilder sb, int depth) {
+            for (int i = 0; i < depth; i++) {
+                sb.append("  ");
+            }
+            sb.append(name)
+                    .append(" calls=").append(calls)
+                    .append(" incl=").append(TimeUnit.NANOSECONDS.toMicros(nanos)).append("us")
+                    .append(" excl=").append(TimeUnit.NANOSECONDS.toMicros(getExclusiveNanos())).append("us")
+                    .append(" size=").append(size)
+                    .append(" misses=").append(misses)
+                    .append('\n');
+            for (Node child : children.values()) {
+                child.print(sb, depth + 1);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            print(sb, 0);
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled (tokenized) form of a template.<br/>
+ * The template text is scanned ONCE when the template is loaded. The result is
+ * an immutable list of instructions (literal text, variable references and
+ * control tags) that is walked each time the template is parsed.<br/>
+ * The template text is UTF-8. Literal text is held both as a slice of the
+ * template bytes and as a decoded String.<br/>
+ * The matching fi# of each ifDef# and ifUnDef# is found when the program is
+ * built so a block that is not included is skipped in one step.<br/>
+ * Each distinct value name is given a slot. The System property of each slot
+ * is found once per SystemPropertySnapshot, not once per lookup.
+ *
+ * @version $Rev: $ $Date: $
+ */
+final class TemplateProgram {
+
+    static final int LITERAL = 0;
+    static final int VAR = 1;
+    static final int EMPTY = 2;
+    static final int UNTERMINATED = 3;
+    static final int BUNDLE_VAR = 4;
+    static final int BUNDLE_REF = 5;
+    static final int REPEAT = 6;
+    static final int INC = 7;
+    static final int INC_VAR = 8;
+    static final int IF_UN_DEF = 9;
+    static final int IF_DEF = 10;
+    static final int FI = 11;
+    static final int SET_VAR = 12;
+    static final int SET_VAR_VAR = 13;
+    static final int UN_SET_VAR = 14;
+    static final int LIST_DATA = 15;
+    static final int FILTERED_VAR = 16;
+
+    private static final char ID_CHAR = '%';
+    static final char FILTER_CHAR = '|';
+
+    final byte[] text;
+    final Instruction[] instructions;
+    /**
+     * True if the program changes the data map (set#, set?, unSet#) or uses a
+     * template that is only known at render time (template?, repeat#).
+     */
+    final boolean hasSideEffects;
+    /**
+     * The number of template# tags.
+     */
+    final int includes;
+    /**
+     * For each ifDef# and ifUnDef# the index of its fi#. 0 for all other
+     * instructions and for an ifDef# without a fi#.
+     */
+    final int[] jumps;
+    /**
+     * Why the ifDef#, ifUnDef# and fi# tags do not nest. null if they do.
+     */
+    final String nestingError;
+    /**
+     * The distinct names looked up by VAR, FILTERED_VAR, IF_DEF and IF_UN_DEF
+     * instructions, indexed by their slot.
+     */
+    final String[] names;
+    /*
+    The System property of each name and the snapshot it was found in.
+     */
+    private volatile SystemValues systemValues;
+    /*
+    Whether the program and the templates it includes can be rendered
+    concurrently (see Template.isParallelSafe()). null until it is first
+    needed.
+     */
+    volatile ParallelSafety parallelSafety;
+
+    private TemplateProgram(byte[] text, Instruction[] instructions) {
+        this.text = text;
+        this.instructions = instructions;
+        this.hasSideEffects = hasSideEffects(instructions);
+        int count = 0;
+        for (Instruction ins : instructions) {
+            if (ins.op == INC) {
+                count++;
+            }
+        }
+        this.includes = count;
+        this.jumps = new int[instructions.length];
+        this.nestingError = link(text, instructions, jumps);
+        this.names = bind(this, instructions);
+    }
+
+    /*
+    Give each instruction that looks up a value the slot of its name.
+     */
+    private static String[] bind(TemplateProgram program, Instruction[] instructions) {
+        Map<String, Integer> slots = new HashMap<>();
+        for (Instruction ins : instructions) {
+            switch (ins.op) {
+                case VAR:
+                case FILTERED_VAR:
+                case IF_DEF:
+                case IF_UN_DEF:
+                    Integer slot = slots.get(ins.name);
+                    if (slot == null) {
+                        slot = slots.size();
+                        slots.put(ins.name, slot);
+                    }
+                    ins.program = program;
+                    ins.slot = slot;
+                    break;
+                default:
+            }
+        }
+        String[] names = new String[slots.size()];
+        for (Map.Entry<String, Integer> e : slots.entrySet()) {
+            names[e.getValue()] = e.getKey();
+        }
+        return names;
+    }
+
+    /**
+     * @param slot The slot of a name
+     * @return The System property of that name in the current
+     * SystemPropertySnapshot or null if there is none
+     */
+    Object systemValue(int slot) {
+        Map<Object, Object> properties = SystemPropertySnapshot.getInstance().values();
+        SystemValues v = systemValues;
+        if ((v == null) || (v.properties != properties)) {
+            Object[] values = new Object[names.length];
+            for (int i = 0; i < names.length; i++) {
+                values[i] = properties.get(names[i]);
+            }
+            v = new SystemValues(properties, values);
+            systemValues = v;
+        }
+        return v.values[slot];
+    }
+
+    /**
+     * A program that was compiled earlier (see {@link TemplatePack}).
+     *
+     * @param text The raw template bytes
+     * @param instructions The instructions compiled from text
+     * @return The program
+     */
+    static TemplateProgram of(byte[] text, Instruction[] instructions) {
+        return new TemplateProgram(text, instructions);
+    }
+
+    /**
+     * Scan the template text and build the instruction list.
+     *
+     * @param text The raw template bytes
+     * @return The compiled program
+     */
+    static TemplateProgram compile(byte[] text) {
+        List<Instruction> list = new ArrayList<>();
+        int maxIndex = text.length - 1;
+        int start = 0;
+        int pos = 0;
+        while (pos <= maxIndex) {
+            byte c = text[pos];
+            pos++;
+            if (c == 0) {
+                pos--;
+                break;
+            }
+            if ((c == ID_CHAR) && (pos <= maxIndex)) {
+                c = text[pos];
+                pos++;
+                if (c == '{') {
+                    literal(text, start, pos - 2, list);
+                    int end = pos;
+                    while ((end <= maxIndex) && (text[end] != '}') && (text[end] != 0)) {
+                        end++;
+                    }
+                    if ((end > maxIndex) || (text[end] == 0)) {
+                        list.add(new Instruction(UNTERMINATED, null, null));
+                        return new TemplateProgram(text, list.toArray(new Instruction[list.size()]));
+                    }
+                    list.add(instructionFor(varName(text, pos, end)));
+                    pos = end + 1;
+                    start = pos;
+                } else if (c == ID_CHAR) {
+                    /*
+                    %% is a single %. End the literal after the first one.
+                     */
+                    literal(text, start, pos - 1, list);
+                    start = pos;
+                }
+            }
+        }
+        literal(text, start, pos, list);
+        return new TemplateProgram(text, list.toArray(new Instruction[list.size()]));
+    }
+
+    /*
+    Match each ifDef#/ifUnDef# with its fi# the same way the suspend stack
+    does when the template is parsed: a fi# closes the nearest open block.
+     */
+    private static String link(byte[] text, Instruction[] instructions, int[] jumps) {
+        int[] open = new int[8];
+        int depth = 0;
+        int position = 0;
+        int outerPosition = 0;
+        String error = null;
+        for (int i = 0; i < instructions.length; i++) {
+            Instruction ins = instructions[i];
+            switch (ins.op) {
+                case LITERAL:
+                    position = ins.offset + ins.length;
+                    break;
+                case IF_DEF:
+                case IF_UN_DEF:
+                    if (depth == 0) {
+                        outerPosition = position;
+                    } else if (depth == open.length) {
+                        int[] bigger = new int[depth * 2];
+                        System.arraycopy(open, 0, bigger, 0, depth);
+                        open = bigger;
+                    }
+                    open[depth++] = i;
+                    break;
+                case FI:
+                    if (depth > 0) {
+                        jumps[open[--depth]] = i;
+                    } else if (error == null) {
+                        error = Template.FI + " without " + Template.IF_DEF + " or " + Template.IF_UN_DEF
+                                + " at line " + line(text, position);
+                    }
+                    break;
+                default:
+            }
+        }
+        if ((depth > 0) && (error == null)) {
+            Instruction outer = instructions[open[0]];
+            error = ((outer.op == IF_DEF) ? Template.IF_DEF : Template.IF_UN_DEF) + outer.name
+                    + " at line " + line(text, outerPosition) + " without " + Template.FI;
+        }
+        return error;
+    }
+
+    /**
+     * @param text The template text
+     * @param position An offset in the text
+     * @return The line number (from 1) of the offset
+     */
+    static int line(byte[] text, int position) {
+        int line = 1;
+        for (int i = 0; (i < position) && (i < text.length); i++) {
+            if (text[i] == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+
+    private static boolean hasSideEffects(Instruction[] instructions) {
+        for (Instruction ins : instructions) {
+            switch (ins.op) {
+                case SET_VAR:
+                case SET_VAR_VAR:
+                case UN_SET_VAR:
+                case INC_VAR:
+                case REPEAT:
+                    return true;
+                default:
+            }
+        }
+        return false;
+    }
+
+    /*
+    Literals are always a contiguous slice of the template text so they can be
+    copied as bytes. They never split a UTF-8 sequence as they only end at
+    ASCII characters.
+     */
+    private static void literal(byte[] text, int from, int to, List<Instruction> list) {
+        if (to > from) {
+            list.add(new Instruction(LITERAL, new String(text, from, to - from, StandardCharsets.UTF_8), null, from, to - from));
+        }
+    }
+
+    private static String varName(byte[] text, int from, int to) {
+        String name = new String(text, from, to - from, StandardCharsets.UTF_8);
+        StringBuilder sb = null;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < ' ') {
+                if (sb == null) {
+                    sb = new StringBuilder(name);
+                }
+                sb.setCharAt(i, '_');
+            }
+        }
+        return (sb == null) ? name : sb.toString();
+    }
+
+    /*
+    The order of these tests is significant. For example 'ifUnDef#' must be
+    tested before 'ifDef#' and 'set#' before 'set?'.
+     */
+    private static Instruction instructionFor(String name) {
+        if (name.length() == 0) {
+            return new Instruction(EMPTY, name, null);
+        }
+        if (name.startsWith(Template.BUNDLE_VAR)) {
+            return new Instruction(BUNDLE_VAR, name.substring(Template.BUNDLE_VAR.length()), null);
+        }
+        if (name.startsWith(Template.BUNDLE_REF)) {
+            return new Instruction(BUNDLE_REF, name.substring(Template.BUNDLE_REF.length()), null);
+        }
+        if (name.startsWith(Template.REPEAT)) {
+            return new Instruction(REPEAT, name.substring(Template.REPEAT.length()), null);
+        }
+        if (name.startsWith(Template.INC)) {
+            return new Instruction(INC, name.substring(Template.INC.length()), null);
+        }
+        if (name.startsWith(Template.INC_VAR)) {
+            return new Instruction(INC_VAR, name.substring(Template.INC_VAR.length()), null);
+        }
+        if (name.startsWith(Template.IF_UN_DEF)) {
+            return new Instruction(IF_UN_DEF, name.substring(Template.IF_UN_DEF.length()), null);
+        }
+        if (name.startsWith(Template.IF_DEF)) {
+            return new Instruction(IF_DEF, name.substring(Template.IF_DEF.length()), null);
+        }
+        if (name.startsWith(Template.FI)) {
+            return new Instruction(FI, null, null);
+        }
+        if (name.startsWith(Template.SET_VAR)) {
+            String[] vals = split('=', name.substring(Template.SET_VAR.length()));
+            return new Instruction(SET_VAR, vals[0], vals[1]);
+        }
+        if (name.startsWith(Template.SET_VAR_VAR)) {
+            String[] vals = split('=', name.substring(Template.SET_VAR_VAR.length()));
+            return new Instruction(SET_VAR_VAR, vals[0], vals[1]);
+        }
+        if (name.startsWith(Template.UN_SET_VAR)) {
+            return new Instruction(UN_SET_VAR, name.substring(Template.UN_SET_VAR.length()), null);
+        }
+        if (name.equals(Template.LIST_DATA)) {
+            return new Instruction(LIST_DATA, name, null);
+        }
+        int bar = name.lastIndexOf(FILTER_CHAR);
+        if (bar >= 0) {
+            return new Instruction(FILTERED_VAR, name.substring(0, bar), name.substring(bar + 1));
+        }
+        return new Instruction(VAR, name, null);
+    }
+
+    private static String[] split(char ch, String s) {
+        StringBuilder sb0 = new StringBuilder();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ch) {
+                sb0 = sb;
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        return new String[]{sb0.toString(), sb.toString()};
+    }
+
+    /**
+     * A single step in a compiled template.<br/>
+     * <b>name</b> holds the literal text for LITERAL, the variable name for
+     * VAR and the argument (the text after the '#' or '?') for control tags.
+     * <b>value</b> is only used by the set tags and is the filter name of a
+     * FILTERED_VAR. <b>tag</b> is the whole text of a FILTERED_VAR (name|value)
+     * and is the value name used when the filter is not registered.
+     * <b>offset</b> and <b>length</b> locate a LITERAL in the template text.
+     * <b>slot</b> is the index of name in the names of its <b>program</b>
+     * (-1 if the instruction does not look up a value).
+     */
+    static final class Instruction {
+
+        final int op;
+        final String name;
+        final String value;
+        final String tag;
+        final int offset;
+        final int length;
+        /*
+        Set by the TemplateProgram, before it is published.
+         */
+        TemplateProgram program;
+        int slot = -1;
+        /*
+        The filter of a FILTERED_VAR and the ValueFilters.version() it was
+        found at.
+         */
+        private volatile Binding binding;
+
+        Instruction(int op, String name, String value) {
+            this(op, name, value, 0, 0);
+        }
+
+        Instruction(int op, String name, String value, int offset, int length) {
+            this.op = op;
+            this.name = name;
+            this.value = value;
+            this.tag = (op == FILTERED_VAR) ? name + FILTER_CHAR + value : name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return The System property of the name (see slot)
+         */
+        Object systemValue() {
+            return (slot < 0) ? SystemPropertySnapshot.getInstance().get(name) : program.systemValue(slot);
+        }
+
+        /**
+         * @return The registered filter of a FILTERED_VAR or null if there is
+         * none (the tag is then a plain value name)
+         */
+        ValueFilter filter() {
+            Binding b = binding;
+            int version = ValueFilters.version();
+            if ((b == null) || (b.version != version)) {
+                b = new Binding(ValueFilters.get(value), version);
+                binding = b;
+            }
+            return b.filter;
+        }
+    }
+
+    private static final class Binding {
+
+        private final ValueFilter filter;
+        private final int version;
+
+        private Binding(ValueFilter filter, int version) {
+            this.filter = filter;
+            this.version = version;
+        }
+    }
+
+    /*
+    Only valid for the TemplateCache generation it was worked out in.
+     */
+    static final class ParallelSafety {
+
+        final int generation;
+        final boolean safe;
+
+        ParallelSafety(int generation, boolean safe) {
+            this.generation = generation;
+            this.safe = safe;
+        }
+    }
+
+    private static final class SystemValues {
+
+        private final Map<Object, Object> properties;
+        private final Object[] values;
+
+        private SystemValues(Map<Object, Object> properties, Object[] values) {
+            this.properties = properties;
+            this.values = values;
+        }
+    }
+}
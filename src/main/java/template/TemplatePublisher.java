@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import template.TemplateOutput.ByteOutput;
+
+/**
+ * A render as a Flow.Publisher of UTF-8 chunks (see
+ * Template.renderPublisher()).<br/>
+ * Each subscriber gets its own render. It starts on the executor when the
+ * subscriber first requests a chunk. The text is cut in to chunks of exactly
+ * chunkSize bytes (the last one can be shorter) and each chunk is published
+ * as soon as it is full, so the first bytes are sent long before the end of
+ * a large page is rendered.<br/>
+ * When the subscriber has no outstanding demand the render waits before
+ * publishing the next chunk, so a slow client pauses the render instead of
+ * the page being buffered. Java 11 has no way to suspend a render part way
+ * through so the waiting render holds its executor thread. On Java 21 or
+ * later a virtual thread executor makes this cheap.<br/>
+ * cancel() stops the render at its next chunk. Repeat# sources are closed as
+ * the render unwinds.
+ *
+ * @version $Rev: $ $Date: $
+ */
+final class TemplatePublisher implements Flow.Publisher<ByteBuffer> {
+
+    private final Template template;
+    private final Map data1;
+    private final boolean ignoreUnresolvedSubs;
+    private final Executor executor;
+    private final int chunkSize;
+
+    TemplatePublisher(Template template, Map data1, boolean ignoreUnresolvedSubs, Executor executor, int chunkSize) {
+        this.template = template;
+        this.data1 = data1;
+        this.ignoreUnresolvedSubs = ignoreUnresolvedSubs;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber is null");
+        }
+        subscriber.onSubscribe(new ChunkSubscription(subscriber));
+    }
+
+    /*
+    Thrown out of the render when the subscription is cancelled.
+     */
+    private static final class CancelledException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private CancelledException() {
+            super("Cancelled");
+        }
+    }
+
+    /*
+    The chunks of the render are passed on by the render thread, which is the
+    only thread to call onNext, onError and onComplete once the render has
+    started. request() and cancel() can be called by any thread: a bad request
+    or a refused render is recorded and signalled by the render thread once it
+    stops, or by the caller if the render never started.
+     */
+    private final class ChunkSubscription implements Flow.Subscription, Runnable, ByteOutput.ChunkTarget {
+
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition demanded = lock.newCondition();
+        private long demand;
+        private boolean started;
+        private boolean terminated;
+        private Throwable error;
+        private volatile boolean cancelled;
+
+        private ChunkSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            boolean start = false;
+            boolean signal = false;
+            lock.lock();
+            try {
+                if (n <= 0) {
+                    if (error == null) {
+                        error = new IllegalArgumentException("request must be positive: " + n);
+                    }
+                    cancelled = true;
+                    signal = !started;
+                    started = true;
+                } else {
+                    demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+                    start = !started && !cancelled;
+                    started = true;
+                }
+                demanded.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (signal) {
+                terminate(null);
+            } else if (start) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    terminate(ex);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            lock.lock();
+            try {
+                cancelled = true;
+                demanded.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            Throwable failed = null;
+            try {
+                ByteOutput out = ByteOutput.chunked(this, chunkSize);
+                template.render(out, new RenderContext(ignoreUnresolvedSubs), data1);
+                out.finish();
+            } catch (Throwable t) {
+                failed = t;
+            }
+            terminate(failed);
+        }
+
+        /*
+        Send the one onError or onComplete. A recorded error (a bad request)
+        comes first. A cancelled subscription gets nothing else: the
+        CancelledException is only thrown once cancelled.
+         */
+        private void terminate(Throwable failed) {
+            Throwable t;
+            boolean quiet;
+            lock.lock();
+            try {
+                if (terminated) {
+                    return;
+                }
+                terminated = true;
+                t = (error != null) ? error : failed;
+                quiet = (error == null) && cancelled;
+            } finally {
+                lock.unlock();
+            }
+            if (quiet) {
+                return;
+            }
+            if (t != null) {
+                subscriber.onError(t);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+
+        /*
+        Wait for demand then hand the chunk over. The output does not write to
+        it again so the subscriber owns it.
+         */
+        @Override
+        public void chunk(byte[] chunk, int offset, int length) throws IOException {
+            lock.lock();
+            try {
+                while ((demand == 0) && !cancelled) {
+                    demanded.awaitUninterruptibly();
+                }
+                if (cancelled) {
+                    throw new CancelledException();
+                }
+                if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+            } finally {
+                lock.unlock();
+            }
+            subscriber.onNext(ByteBuffer.wrap(chunk, offset, length).slice());
+        }
+    }
+}
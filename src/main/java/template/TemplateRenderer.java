@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import template.TemplateProgram.Instruction;
+
+/**
+ * A closure-tree interpreter for hot templates (see
+ * TemplateCache.setPromoteAfter()). The program is flattened in to a tree of
+ * step objects and each step is rendered by a virtual call. No code is
+ * generated.<br/>
+ * The interpreter in Template checks every instruction against the
+ * ifDef#/fi# state and switches on its type. Here each step is bound when the
+ * renderer is built:<br/>
+ * - Literals write their slice of the template bytes.<br/>
+ * - Values look up their name and write a pre-built text if the
+ * value is not found. A filtered value checks that its filter is still
+ * registered (see ValueFilters) each time it is rendered.<br/>
+ * - ifDef# and ifUnDef# are blocks holding the steps up to their fi#. The
+ * condition is tested once and a false block is skipped in one step. There is
+ * no suspend stack.<br/>
+ * - All other tags use the interpreter code for that tag.<br/>
+ * The output is the same as the interpreter. Only programs with balanced
+ * ifDef#/ifUnDef#/fi# tags can be built (the interpreter defines what an
+ * unbalanced fi# does).<br/>
+ * It does not do the per instruction suspend test, switch and jump table of
+ * Template.parseDual() but it adds a virtual call per step. Whether that is
+ * faster depends on the template. Measure it with PromotionBenchmark before
+ * turning promotion on.
+ *
+ * @version $Rev: $ $Date: $
+ */
+final class TemplateRenderer {
+
+    final TemplateProgram program;
+    private final Step[] steps;
+
+    private TemplateRenderer(TemplateProgram program, Step[] steps) {
+        this.program = program;
+        this.steps = steps;
+    }
+
+    /**
+     * @param program The compiled template
+     * @return The renderer or null if the ifDef#/fi# tags are not balanced
+     */
+    static TemplateRenderer compile(TemplateProgram program) {
+        if (program.nestingError != null) {
+            return null;
+        }
+        return new TemplateRenderer(program, block(program, new int[]{0}));
+    }
+
+    /*
+    The steps from pos up to the matching fi# (or the end).
+     */
+    private static Step[] block(TemplateProgram program, int[] pos) {
+        List<Step> list = new ArrayList<>();
+        while (pos[0] < program.instructions.length) {
+            Instruction ins = program.instructions[pos[0]++];
+            switch (ins.op) {
+                case TemplateProgram.LITERAL:
+                    list.add(new Literal(program.text, ins));
+                    break;
+                case TemplateProgram.VAR:
+                    list.add(new Value(ins));
+                    break;
+                case TemplateProgram.FILTERED_VAR:
+                    list.add(new FilteredValue(ins));
+                    break;
+                case TemplateProgram.IF_DEF:
+                case TemplateProgram.IF_UN_DEF:
+                    list.add(new Block(ins, block(program, pos)));
+                    break;
+                case TemplateProgram.FI:
+                    return list.toArray(new Step[list.size()]);
+                case TemplateProgram.UNTERMINATED:
+                    list.add(new Unterminated());
+                    break;
+                default:
+                    list.add(new Tag(ins));
+            }
+        }
+        return list.toArray(new Step[list.size()]);
+    }
+
+    void render(Template t, RenderContext ctx, TemplateOutput out, Map data1, Map data2) throws IOException {
+        for (Step step : steps) {
+            step.render(t, ctx, out, data1, data2);
+        }
+    }
+
+    private abstract static class Step {
+
+        abstract void render(Template t, RenderContext ctx, TemplateOutput out, Map data1, Map data2) throws IOException;
+    }
+
+    private static final class Literal extends Step {
+
+        private final byte[] text;
+        private final Instruction ins;
+
+        private Literal(byte[] text, Instruction ins) {
+            this.text = text;
+            this.ins = ins;
+        }
+
+        @Override
+        void render(Template t, RenderContext ctx, TemplateOutput out, Map data1, Map data2) throws IOException {
+            out.writeLiteral(text, ins);
+        }
+    }
+
+    private static final class Value extends Step {
+
+        private final Instruction ins;
+        private final String notFound;
+        private final String ignored;
+
+        private Value(Instruction ins) {
+            this.ins = ins;
+            this.notFound = Template.unresolved(ins.name, false);
+            this.ignored = Template.unresolved(ins.name, true);
+        }
+
+        @Override
+        void render(Template t, RenderContext ctx, TemplateOutput out, Map data1, Map data2) throws IOException {
+            Object var = t.getSubVar(ctx, ins, data1, data2);
+            if (var == null) {
+                t.reportUnresolved(ctx, ins.name);
+                out.write(ctx.ignoreUnresolvedSubs ? ignored : notFound);
+            } else {
+                ValueWriters.write(var, out);
+            }
+        }
+    }
+
+    private static final class FilteredValue extends Step {
+
+        private final Instruction ins;
+        private final String notFound;
+        private final String ignored;
+
+        private FilteredValue(Instruction ins) {
+            this.ins = ins;
+            this.notFound = Template.unresolved(ins.tag, false);
+            this.ignored = Template.unresolved(ins.tag, true);
+        }
+
+        /*
+        Without a registered filter the whole tag is the value name.
+         */
+        @Override
+        void render(Template t, RenderContext ctx, TemplateOutput out, Map data1, Map data2) throws IOException {
+            ValueFilter filter = ins.filter();
+            Object var = (filter == null) ? t.getSubVar(ctx, ins.tag, data1, data2) : t.getSubVar(ctx, ins, data1, data2);
+            if (var == null) {
+                t.reportUnresolved(ctx, (filter == null) ? ins.tag : ins.name);
+                out.write(ctx.ignoreUnresolvedSubs ? ignored : notFound);
+            } else if (filter == null) {
+                ValueWriters.write(var, out);
+            } else {
+                ValueFilters.write(filter, var, out);
+            }
+        }
+    }
+
+    private static final class Block extends Step {
+
+        private final Instruction ins;
+        private final Step[] steps;
+
+        private Block(Instruction ins, Step[] steps) {
+            this.ins = ins;
+            this.steps = steps;
+        }
+
+        @Override
+        void render(Template t, RenderContext ctx, TemplateOutput out, Map data1, Map data2) throws IOException {
+            if (t.isIncluded(ctx, ins, data1, data2)) {
+                for (Step step : steps) {
+                    step.render(t, ctx, out, data1, data2);
+                }
+            }
+        }
+    }
+
+    private static final class Unterminated extends Step {
+
+        @Override
+        void render(Template t, RenderContext ctx, TemplateOutput out, Map data1, Map data2) throws IOException {
+            out.write(Template.ERROR_PREFIX
+                    + "SUBSTITUTION VAR NOT TERMINATED"
+                    + Template.ERROR_SUFFIX);
+        }
+    }
+
+    /*
+    Includes, repeats, bundles, set tags and listData.
+     */
+    private static final class Tag extends Step {
+
+        private final Instruction ins;
+
+        private Tag(Instruction ins) {
+            this.ins = ins;
+        }
+
+        @Override
+        void render(Template t, RenderContext ctx, TemplateOutput out, Map data1, Map data2) throws IOException {
+            String val = t.lookUpVar(ctx, out, ins, data1, data2);
+            if (val.length() > 0) {
+                out.write(val);
+            }
+        }
+    }
+}
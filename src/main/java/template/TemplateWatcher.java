@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional background re-loading of file based templates and bundles.<br/>
+ * When started, the directories of all file based templates and bundles in
+ * the {@link TemplateCache} and {@link BundleCache} (and any loaded later) are
+ * watched using a java.nio.file.WatchService. When a cached file is created or
+ * modified it is re-loaded on the watcher thread and the cached version is
+ * replaced. Threads that are parsing are never blocked. They see the new
+ * version on their next parse.<br/>
+ * Editors (and Files.write) often truncate a file then write it, giving more
+ * than one event. Events are collected until none arrive for
+ * {@link #SETTLE_MILLIS} so a half written file is not loaded. A directory
+ * that never goes quiet is re-loaded at least every
+ * {@link #MAX_SETTLE_MILLIS}.<br/>
+ * If a re-load fails the old version is kept and the listener is told.<br/>
+ * <br/>
+ * <code>TemplateWatcher.getInstance().start(listener);</code>
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class TemplateWatcher {
+
+    public static final long SETTLE_MILLIS = 50;
+    public static final long MAX_SETTLE_MILLIS = 1000;
+    private static final TemplateWatcher INSTANCE = new TemplateWatcher();
+
+    private final Map<Path, WatchKey> watched = new ConcurrentHashMap<>();
+    private volatile WatchService watchService;
+    private volatile Listener listener;
+    private Thread thread;
+
+    /**
+     * Told about each re-load. Called on the watcher thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param location The resolved location of the template or bundle
+         */
+        void reloaded(String location);
+
+        /**
+         * @param location The resolved location of the template or bundle
+         * @param ex Why it failed. The previous version is still used
+         */
+        void failed(String location, Exception ex);
+    }
+
+    private TemplateWatcher() {
+    }
+
+    public static TemplateWatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start watching. Does nothing if already started.
+     *
+     * @param listener Told about re-loads (can be null)
+     * @throws TemplateException If the watch service cannot be created
+     */
+    public synchronized void start(Listener listener) {
+        this.listener = listener;
+        if (watchService != null) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException ex) {
+            throw new TemplateException(Template.ignoreException("Failed to create WatchService " + ex.getMessage(), ex), ex);
+        }
+        for (String location : TemplateCache.getInstance().locations()) {
+            watch(location);
+        }
+        for (String location : BundleCache.getInstance().locations()) {
+            watch(location);
+        }
+        final WatchService ws = watchService;
+        thread = new Thread(() -> run(ws), "TemplateWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching. Cached templates and bundles are kept.
+     */
+    public synchronized void stop() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+        }
+        watchService = null;
+        watched.clear();
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return watchService != null;
+    }
+
+    /**
+     * Watch the directory of a newly cached template or bundle. Does nothing
+     * if not running or the location is not a file.
+     *
+     * @param location The resolved location of the template or bundle
+     */
+    void watch(String location) {
+        WatchService ws = watchService;
+        if ((ws == null) || !location.startsWith(Template.FILE_PREFIX)) {
+            return;
+        }
+        Path dir = new File(location.substring(Template.FILE_PREFIX.length())).toPath().toAbsolutePath().normalize().getParent();
+        if ((dir == null) || watched.containsKey(dir) || !Files.isDirectory(dir)) {
+            return;
+        }
+        try {
+            watched.put(dir, dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+        } catch (IOException | ClosedWatchServiceException ex) {
+            Listener l = listener;
+            if (l != null) {
+                l.failed(location, ex);
+            }
+        }
+    }
+
+    private void run(WatchService ws) {
+        try {
+            while (true) {
+                List<String> changed = new ArrayList<>();
+                WatchKey key = ws.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_SETTLE_MILLIS);
+                while (key != null) {
+                    collect(key, changed);
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    key = ws.poll(Math.min(TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS), left), TimeUnit.NANOSECONDS);
+                }
+                for (String location : changed) {
+                    reload(location);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            /*
+            Stopped
+             */
+        }
+    }
+
+    /*
+    The watched directories are absolute and normalised so the locations built
+    here match the cache keys (see Template.fileLocation()).
+     */
+    private void collect(WatchKey key, List<String> changed) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                continue;
+            }
+            String location = Template.FILE_PREFIX + dir.resolve((Path) event.context()).toString();
+            if (!changed.contains(location)) {
+                changed.add(location);
+            }
+        }
+        if (!key.reset()) {
+            watched.remove(dir);
+        }
+    }
+
+    private void reload(String location) {
+        Listener l = listener;
+        try {
+            final File file = new File(location.substring(Template.FILE_PREFIX.length()));
+            boolean reloaded = TemplateCache.getInstance().reload(location, () -> {
+                try {
+                    return TemplateProgram.compile(SourceReader.read(file));
+                } catch (IOException ex) {
+                    throw new TemplateException(Template.ignoreException("Failed to re-load [" + file + "] " + ex.getMessage(), ex), ex);
+                }
+            });
+            if (BundleCache.getInstance().reload(location)) {
+                reloaded = true;
+            }
+            if (reloaded && (l != null)) {
+                l.reloaded(location);
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (l != null) {
+                l.failed(location, ex);
+            }
+        }
+    }
+}
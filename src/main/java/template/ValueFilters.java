@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The filters that can follow a value name, for example %{name|html}.<br/>
+ * <b>html</b> - &amp; &lt; &gt; " and ' are written as entities.<br/>
+ * <b>json</b> - the value is written as the content of a JSON string: " and \
+ * are escaped and control characters (and U+2028, U+2029) are written as
+ * \n, \t or a 4 hex digit unicode escape. The quotes are not written.<br/>
+ * <b>url</b> - everything except A-Z a-z 0-9 - _ . ~ is written as %XX of
+ * its UTF-8 bytes (a space is %20).<br/>
+ * The value is escaped as it is written. Text that needs no escaping is
+ * copied straight across and numbers are written as digits.<br/>
+ * The text after the last | is only a filter if a filter of that name is
+ * registered. Otherwise the whole tag is a value name, so data keys holding a
+ * | still work. Filters can be registered or removed at any time: loaded
+ * templates find their filters again the next time they are rendered.
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class ValueFilters {
+
+    public static final String HTML = "html";
+    public static final String JSON = "json";
+    public static final String URL = "url";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final ConcurrentHashMap<String, ValueFilter> FILTERS = new ConcurrentHashMap<>();
+    /*
+    Changed after each register() and remove() so compiled tags know to look
+    up their filter again.
+     */
+    private static final AtomicInteger VERSION = new AtomicInteger();
+
+    static {
+        reset();
+    }
+
+    private ValueFilters() {
+    }
+
+    /**
+     * Add a filter or replace one (including html, json and url).
+     *
+     * @param name The name used after the | in a tag
+     * @param filter The filter
+     */
+    public static void register(String name, ValueFilter filter) {
+        if (name == null) {
+            throw new InvalidParameterException("Parameter name is null");
+        }
+        if (filter == null) {
+            throw new InvalidParameterException("Parameter filter is null");
+        }
+        FILTERS.put(name, filter);
+        VERSION.incrementAndGet();
+    }
+
+    /**
+     * Remove a filter. Tags using it become plain value names.
+     *
+     * @param name The name given to register()
+     */
+    public static void remove(String name) {
+        FILTERS.remove(name);
+        VERSION.incrementAndGet();
+    }
+
+    /**
+     * Remove all registered filters and put back html, json and url.
+     */
+    static void reset() {
+        FILTERS.clear();
+        FILTERS.put(HTML, new Html());
+        FILTERS.put(JSON, new Json());
+        FILTERS.put(URL, new Url());
+        VERSION.incrementAndGet();
+    }
+
+    /**
+     * @return A number that changes when a filter is registered or removed
+     */
+    static int version() {
+        return VERSION.get();
+    }
+
+    /**
+     * @param name A filter name
+     * @return The filter or null if there is none
+     */
+    static ValueFilter get(String name) {
+        return (name == null) ? null : FILTERS.get(name);
+    }
+
+    static void write(ValueFilter filter, Object value, TemplateOutput out) throws IOException {
+        if (filter instanceof Escaper) {
+            if (value instanceof String) {
+                out.write((String) value, (Escaper) filter);
+            } else if (ValueWriters.isPlain(value)) {
+                ValueWriters.write(value, out);
+            } else {
+                out.write(ValueWriters.toText(value), (Escaper) filter);
+            }
+        } else {
+            filter.write((value instanceof String) ? (String) value : ValueWriters.toText(value), out);
+        }
+    }
+
+    /**
+     * A built in filter. The output escapes the value in the same pass that
+     * copies it (see TemplateOutput.write(CharSequence, Escaper)). The escaped
+     * text of each ASCII char is made once, as text and as UTF-8 bytes.
+     */
+    abstract static class Escaper implements ValueFilter {
+
+        /**
+         * The escaped text of each ASCII char. null if it is not escaped.
+         */
+        final String[] asciiText = new String[0x80];
+        final byte[][] asciiBytes = new byte[0x80][];
+
+        void escapeAscii(char c, String text) {
+            asciiText[c] = text;
+            asciiBytes[c] = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(CharSequence value, ValueOutput out) throws IOException {
+            if (out instanceof TemplateOutput) {
+                ((TemplateOutput) out).write(value, this);
+            } else {
+                writeRuns(value, out);
+            }
+        }
+
+        /*
+        Copies the runs of chars that need no escaping and escapes the others. A
+        value with nothing to escape is written in one go.
+         */
+        void writeRuns(CharSequence value, ValueOutput out) throws IOException {
+            int len = value.length();
+            int start = 0;
+            for (int i = 0; i < len; i++) {
+                char c = value.charAt(i);
+                if ((c < 0x80) ? (asciiText[c] != null) : escapedAbove(c)) {
+                    if (i > start) {
+                        out.write(value, start, i);
+                    }
+                    if (c < 0x80) {
+                        out.write(asciiText[c]);
+                    } else {
+                        i = escapeAbove(value, i, out);
+                    }
+                    start = i + 1;
+                }
+            }
+            if (start == 0) {
+                out.write(value);
+            } else if (start < len) {
+                out.write(value, start, len);
+            }
+        }
+
+        /**
+         * @param c A char that is not ASCII
+         * @return True if it is escaped
+         */
+        abstract boolean escapedAbove(char c);
+
+        /**
+         * Write the escaped char at i (one that is not ASCII).
+         *
+         * @return The index of the last char used
+         */
+        abstract int escapeAbove(CharSequence value, int i, ValueOutput out) throws IOException;
+    }
+
+    private static final class Html extends Escaper {
+
+        private Html() {
+            escapeAscii('&', "&amp;");
+            escapeAscii('<', "&lt;");
+            escapeAscii('>', "&gt;");
+            escapeAscii('"', "&quot;");
+            escapeAscii('\'', "&#39;");
+        }
+
+        @Override
+        boolean escapedAbove(char c) {
+            return false;
+        }
+
+        @Override
+        int escapeAbove(CharSequence value, int i, ValueOutput out) throws IOException {
+            out.write(value.charAt(i));
+            return i;
+        }
+    }
+
+    private static final class Json extends Escaper {
+
+        private Json() {
+            for (char c = 0; c < ' '; c++) {
+                escapeAscii(c, unicode(c));
+            }
+            escapeAscii('"', "\\\"");
+            escapeAscii('\\', "\\\\");
+            escapeAscii('\n', "\\n");
+            escapeAscii('\r', "\\r");
+            escapeAscii('\t', "\\t");
+            escapeAscii('\b', "\\b");
+            escapeAscii('\f', "\\f");
+        }
+
+        @Override
+        boolean escapedAbove(char c) {
+            return (c == 0x2028) || (c == 0x2029);
+        }
+
+        @Override
+        int escapeAbove(CharSequence value, int i, ValueOutput out) throws IOException {
+            char c = value.charAt(i);
+            out.write('\\');
+            out.write('u');
+            out.write(HEX[(c >> 12) & 0xF]);
+            out.write(HEX[(c >> 8) & 0xF]);
+            out.write(HEX[(c >> 4) & 0xF]);
+            out.write(HEX[c & 0xF]);
+            return i;
+        }
+
+        private static String unicode(char c) {
+            return new String(new char[]{'\\', 'u', HEX[(c >> 12) & 0xF], HEX[(c >> 8) & 0xF], HEX[(c >> 4) & 0xF], HEX[c & 0xF]});
+        }
+    }
+
+    private static final class Url extends Escaper {
+
+        private Url() {
+            for (char c = 0; c < 0x80; c++) {
+                if (!(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))
+                        || (c == '-') || (c == '_') || (c == '.') || (c == '~'))) {
+                    escapeAscii(c, new String(new char[]{'%', HEX[c >> 4], HEX[c & 0xF]}));
+                }
+            }
+        }
+
+        @Override
+        boolean escapedAbove(char c) {
+            return true;
+        }
+
+        /*
+        A surrogate pair is one code point. A lone surrogate is '?', the same
+        as String.getBytes.
+         */
+        @Override
+        int escapeAbove(CharSequence value, int i, ValueOutput out) throws IOException {
+            char c = value.charAt(i);
+            if (c < 0x800) {
+                percent(0xC0 | (c >> 6), out);
+                percent(0x80 | (c & 0x3F), out);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && (i + 1 < value.length()) && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    percent(0xF0 | (cp >> 18), out);
+                    percent(0x80 | ((cp >> 12) & 0x3F), out);
+                    percent(0x80 | ((cp >> 6) & 0x3F), out);
+                    percent(0x80 | (cp & 0x3F), out);
+                } else {
+                    percent('?', out);
+                }
+            } else {
+                percent(0xE0 | (c >> 12), out);
+                percent(0x80 | ((c >> 6) & 0x3F), out);
+                percent(0x80 | (c & 0x3F), out);
+            }
+            return i;
+        }
+
+        private static void percent(int b, ValueOutput out) throws IOException {
+            out.write('%');
+            out.write(HEX[(b >> 4) & 0xF]);
+            out.write(HEX[b & 0xF]);
+        }
+    }
+}
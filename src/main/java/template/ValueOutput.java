@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+
+/**
+ * Where a {@link ValueWriter} or {@link ValueFilter} writes a value. It writes
+ * straight in to the render's output so nothing is allocated.
+ *
+ * @version $Rev: $ $Date: $
+ */
+public interface ValueOutput {
+
+    /**
+     * @param c A char. A surrogate on its own is written as '?' (use
+     * write(CharSequence) for a surrogate pair)
+     * @throws IOException
+     */
+    void write(char c) throws IOException;
+
+    void write(CharSequence s) throws IOException;
+
+    /**
+     * @param s The chars
+     * @param start The index of the first char to write
+     * @param end The index after the last char to write
+     * @throws IOException
+     */
+    void write(CharSequence s, int start, int end) throws IOException;
+
+    /**
+     * @param n Written as Long.toString(n) would be
+     * @throws IOException
+     */
+    void write(long n) throws IOException;
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+
+/**
+ * Writes values of one type in to the output of a render, in place of
+ * value.toString(). Register it with ValueWriters.register().
+ *
+ * @param <T> The type of value
+ * @version $Rev: $ $Date: $
+ */
+@FunctionalInterface
+public interface ValueWriter<T> {
+
+    /**
+     * Called on the rendering thread, often by many threads at once.
+     *
+     * @param value The value. Never null
+     * @param out Where to write it
+     * @throws IOException
+     */
+    void write(T value, ValueOutput out) throws IOException;
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.security.InvalidParameterException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes substituted values in to the output without calling toString() where
+ * it can. The text is the same as value.toString() for:<br/>
+ * - String and StringBuilder (the chars are copied)<br/>
+ * - Integer, Long, Short, Byte, AtomicInteger and AtomicLong (the digits are
+ * written straight in to the buffer)<br/>
+ * - Character and Boolean<br/>
+ * - Double and Float with a whole number value below 10,000,000 (for example
+ * 42.0). Other values use toString()<br/>
+ * - BigDecimal with a scale of 0 that fits in a long. Other values use
+ * toString(), which BigDecimal keeps once it has been made<br/>
+ * Anything else, including subclasses of the above, uses toString().<br/>
+ * register() adds a writer for a type, or replaces the one above (for example
+ * to format a Date). Writers are matched by the exact class of the value.
+ * String values are always written as they are.
+ *
+ * @version $Rev: $ $Date: $
+ */
+public final class ValueWriters {
+
+    private static final ConcurrentHashMap<Class<?>, ValueWriter<Object>> WRITERS = new ConcurrentHashMap<>();
+    private static final double WHOLE_LIMIT = 1.0E7;
+
+    private ValueWriters() {
+    }
+
+    /**
+     * Write values of type with writer. Replaces any writer already registered
+     * for type.
+     *
+     * @param <T> The type of value
+     * @param type The exact class of the values
+     * @param writer The writer
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void register(Class<T> type, ValueWriter<? super T> writer) {
+        if (type == null) {
+            throw new InvalidParameterException("Parameter type is null");
+        }
+        if (writer == null) {
+            throw new InvalidParameterException("Parameter writer is null");
+        }
+        WRITERS.put(type, (ValueWriter<Object>) writer);
+    }
+
+    /**
+     * Go back to the built in writing of type.
+     *
+     * @param type The class given to register()
+     */
+    public static void remove(Class<?> type) {
+        WRITERS.remove(type);
+    }
+
+    /**
+     * Remove all registered writers.
+     */
+    static void reset() {
+        WRITERS.clear();
+    }
+
+    /*
+    True if value is written as digits, '-', '.', 'E' or letters and has no
+    registered writer. Such text never needs escaping by the built in filters.
+     */
+    static boolean isPlain(Object value) {
+        Class<?> type = value.getClass();
+        if ((type == Integer.class) || (type == Long.class) || (type == Short.class) || (type == Byte.class)
+                || (type == Double.class) || (type == Float.class) || (type == Boolean.class)
+                || (type == AtomicInteger.class) || (type == AtomicLong.class)) {
+            return WRITERS.isEmpty() || !WRITERS.containsKey(type);
+        }
+        return false;
+    }
+
+    /*
+    The text of a value for a filter. Uses the registered writer if there is
+    one.
+     */
+    static String toText(Object value) throws IOException {
+        ValueWriter<Object> writer = WRITERS.isEmpty() ? null : WRITERS.get(value.getClass());
+        if (writer == null) {
+            return value.toString();
+        }
+        StringBuilder sb = new StringBuilder();
+        writer.write(value, new TemplateOutput.CharOutput(sb));
+        return sb.toString();
+    }
+
+    static void write(Object value, TemplateOutput out) throws IOException {
+        if (value instanceof String) {
+            out.write((String) value);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (!WRITERS.isEmpty()) {
+            ValueWriter<Object> writer = WRITERS.get(type);
+            if (writer != null) {
+                writer.write(value, out);
+                return;
+            }
+        }
+        if ((type == Integer.class) || (type == Long.class) || (type == Short.class) || (type == Byte.class)) {
+            out.write(((Number) value).longValue());
+        } else if ((type == AtomicInteger.class) || (type == AtomicLong.class)) {
+            out.write(((Number) value).longValue());
+        } else if (type == Double.class) {
+            writeDouble((Double) value, out);
+        } else if (type == Float.class) {
+            writeFloat((Float) value, out);
+        } else if (type == Character.class) {
+            out.write(((Character) value).charValue());
+        } else if (type == Boolean.class) {
+            out.write(((Boolean) value) ? "true" : "false");
+        } else if (type == StringBuilder.class) {
+            out.write((StringBuilder) value);
+        } else if (type == BigDecimal.class) {
+            writeBigDecimal((BigDecimal) value, out);
+        } else {
+            out.write(value.toString());
+        }
+    }
+
+    /*
+    Double.toString writes a whole number below 10^7 as its digits and ".0".
+    -0.0 keeps its sign.
+     */
+    private static void writeDouble(double d, TemplateOutput out) throws IOException {
+        long n = (long) d;
+        if ((n == d) && (Math.abs(d) < WHOLE_LIMIT)) {
+            if ((n == 0) && (Double.doubleToRawLongBits(d) != 0)) {
+                out.write('-');
+            }
+            out.write(n);
+            out.write(".0");
+        } else {
+            out.write(Double.toString(d));
+        }
+    }
+
+    private static void writeFloat(float f, TemplateOutput out) throws IOException {
+        long n = (long) f;
+        if ((n == f) && (Math.abs(f) < WHOLE_LIMIT)) {
+            if ((n == 0) && (Float.floatToRawIntBits(f) != 0)) {
+                out.write('-');
+            }
+            out.write(n);
+            out.write(".0");
+        } else {
+            out.write(Float.toString(f));
+        }
+    }
+
+    /*
+    precision() does not allocate for a BigDecimal that fits in a long and
+    longValue() returns it as it is when the scale is 0.
+     */
+    private static void writeBigDecimal(BigDecimal d, TemplateOutput out) throws IOException {
+        if ((d.scale() == 0) && (d.precision() < 19)) {
+            out.write(d.longValue());
+        } else {
+            out.write(d.toString());
+        }
+    }
+}
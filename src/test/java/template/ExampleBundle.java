@@ -16,6 +16,10 @@
  */
 package template;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
 import static junit.framework.Assert.*;
@@ -40,6 +44,71 @@ public class ExampleBundle {
 //        assertEquals("", EXPECTED, testImportBundle("src/test/resources/file_021.txt"));
 //    }
 
+    @Test
+    public void testGetBundlePropertyOverride() throws IOException {
+        File dir = Files.createTempDirectory("bundle").toFile();
+        File tpl = new File(dir, "main.txt");
+        File bundle = new File(dir, "b.properties");
+        Files.write(tpl.toPath(), "%{bundle#b.properties}Value=%{value} Extra=%{extra}".getBytes(StandardCharsets.UTF_8));
+        Files.write(bundle.toPath(), "value=one".getBytes(StandardCharsets.UTF_8));
+        try {
+            /*
+            An override sees the bundle values of the parse via super
+             */
+            Template template = new Template(tpl.getPath()) {
+                @Override
+                protected Object getBundleProperty(String name) {
+                    Object value = super.getBundleProperty(name);
+                    if (value != null) {
+                        return value.toString().toUpperCase();
+                    }
+                    return "extra".equals(name) ? "default" : null;
+                }
+            };
+            assertEquals("", "Value=ONE Extra=default", template.parse(new HashMap<>()));
+            assertEquals("", "default", template.getSubVar("extra", null, null));
+            assertNull("", template.getSubVar("value", null, null));
+        } finally {
+            TemplateCache.getInstance().remove(Template.fileLocation(tpl));
+            BundleCache.getInstance().remove(Template.fileLocation(bundle));
+            tpl.delete();
+            bundle.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testBundleIsCachedAndReloaded() throws IOException {
+        File dir = Files.createTempDirectory("bundle").toFile();
+        File tpl = new File(dir, "main.txt");
+        File bundle = new File(dir, "b.properties");
+        Files.write(tpl.toPath(), "%{bundle#b.properties}Value=%{value}".getBytes(StandardCharsets.UTF_8));
+        Files.write(bundle.toPath(), "value=one".getBytes(StandardCharsets.UTF_8));
+        BundleCache cache = BundleCache.getInstance();
+        long interval = cache.getCheckInterval();
+        try {
+            cache.setCheckInterval(0);
+            Template template = new Template(tpl.getPath());
+            Map<String, Object> data = new HashMap<>();
+            assertEquals("", "Value=one", template.parse(data));
+            long misses = cache.getMisses();
+            assertEquals("", "Value=one", template.parse(data));
+            assertEquals("Misses", misses, cache.getMisses());
+            /*
+            Change the size so the change is seen even if the file time does not move.
+             */
+            Files.write(bundle.toPath(), "value=two!".getBytes(StandardCharsets.UTF_8));
+            long reloads = cache.getReloads();
+            assertEquals("", "Value=two!", template.parse(data));
+            assertEquals("Reloads", reloads + 1, cache.getReloads());
+        } finally {
+            cache.setCheckInterval(interval);
+            bundle.delete();
+            tpl.delete();
+            dir.delete();
+        }
+    }
+
     public String testImportBundle(String mainFile) {
         /*
         Create a map with the data in it
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+public class ExampleCache {
+
+    @Test
+    public void testIncludeIsLoadedOnce() {
+        TemplateCache cache = TemplateCache.getInstance();
+        cache.clear();
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "Jo Bloggs");
+        long misses = cache.getMisses();
+        /*
+        First parse loads file_010.txt and the included file_010_1.txt
+         */
+        String first = new Template("src/test/resources/file_010.txt").parse(data);
+        assertEquals("Misses", misses + 2, cache.getMisses());
+        long hits = cache.getHits();
+        /*
+        Second parse should not load anything
+         */
+        String second = new Template("src/test/resources/file_010.txt").parse(data);
+        assertEquals("Output", first, second);
+        assertEquals("Misses", misses + 2, cache.getMisses());
+        assertEquals("Hits", hits + 2, cache.getHits());
+    }
+
+    @Test
+    public void testRepeatLoadsRowTemplateOnce() {
+        TemplateCache cache = TemplateCache.getInstance();
+        Template template = new Template("src/test/resources/file_005.txt");
+        Map<String, Object> data = new HashMap<>();
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> m = new HashMap<>();
+            m.put("lineText", "Line " + i);
+            list.add(m);
+        }
+        data.put("file_005_1.txt", list);
+        long lookups = cache.getHits() + cache.getMisses();
+        template.parse(data);
+        assertEquals("Lookups", lookups + 1, cache.getHits() + cache.getMisses());
+    }
+
+    @Test
+    public void testOutputSizeHint() {
+        TemplateCache.Entry entry = new TemplateCache.Entry(TemplateProgram.compile(new byte[0]));
+        assertEquals("", TemplateOutput.ByteOutput.DEFAULT_SIZE, entry.sizeHint());
+        entry.recordSize(100000);
+        assertEquals("", 112500, entry.sizeHint());
+        for (int i = 0; i < 50; i++) {
+            entry.recordSize(1000);
+        }
+        assertTrue("" + entry.sizeHint(), entry.sizeHint() < 1200);
+        assertTrue("" + entry.sizeHint(), entry.sizeHint() >= 1000);
+        /*
+        Buffers are re-used. A pool of its own so the shared one is not
+        changed.
+         */
+        BufferPool pool = new BufferPool(2);
+        byte[] buf = pool.take(5001);
+        pool.give(buf);
+        assertSame("", buf, pool.take(5001));
+        assertNotSame("", buf, pool.take(5001));
+    }
+
+    @Test
+    public void testEviction() {
+        TemplateCache cache = TemplateCache.getInstance();
+        cache.clear();
+        long evictions = cache.getEvictions();
+        try {
+            cache.setMaxSize(1);
+            new Template("src/test/resources/file_005.txt");
+            new Template("src/test/resources/file_006.txt");
+            assertEquals("Size", 1, cache.size());
+            assertEquals("Evictions", evictions + 1, cache.getEvictions());
+            /*
+            A template used since it was cached gets a second chance
+             */
+            cache.clear();
+            cache.setMaxSize(2);
+            new Template("src/test/resources/file_005.txt");
+            new Template("src/test/resources/file_006.txt");
+            new Template("src/test/resources/file_005.txt");
+            new Template("src/test/resources/file_010.txt");
+            assertEquals("Size", 2, cache.size());
+            assertEquals("Evictions", evictions + 2, cache.getEvictions());
+            assertTrue("", cached("/file_005.txt"));
+            assertFalse("", cached("/file_006.txt"));
+            assertTrue("", cached("/file_010.txt"));
+            for (String location : new ArrayList<>(cache.locations())) {
+                if (location.endsWith("/file_005.txt")) {
+                    cache.remove(location);
+                }
+            }
+            new Template("src/test/resources/file_006.txt");
+            assertEquals("Size", 2, cache.size());
+            assertEquals("Evictions", evictions + 2, cache.getEvictions());
+        } finally {
+            cache.setMaxSize(TemplateCache.DEFAULT_MAX_SIZE);
+        }
+    }
+
+    @Test
+    public void testDeletedTemplate() throws Exception {
+        File tpl = File.createTempFile("deleted", ".txt");
+        Files.write(tpl.toPath(), "Hello %{name}".getBytes(StandardCharsets.UTF_8));
+        new Template(tpl.getPath());
+        assertTrue("", cached("/" + tpl.getName()));
+        assertTrue("", tpl.delete());
+        /*
+        Still cached but the file is gone
+         */
+        try {
+            new Template(tpl.getPath());
+            fail("Deleted template was loaded");
+        } catch (InvalidParameterException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().endsWith("] does not exist"));
+        }
+    }
+
+    private static boolean cached(String name) {
+        for (String location : TemplateCache.getInstance().locations()) {
+            if (location.endsWith(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testPromotion() {
+        TemplateCache cache = TemplateCache.getInstance();
+        cache.clear();
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "Jo Bloggs");
+        String interpreted = new Template("src/test/resources/file_010.txt").parse(data);
+        long promotions = cache.getPromotions();
+        try {
+            cache.setPromoteAfter(2);
+            for (int i = 0; i < 5; i++) {
+                assertEquals("Render " + i, interpreted, new Template("src/test/resources/file_010.txt").parse(data));
+            }
+            assertTrue("Not promoted", cache.getPromotions() > promotions);
+            /*
+            A parse of a program that has been re-loaded does not stop the
+            new program being promoted.
+             */
+            TemplateProgram old = TemplateProgram.compile("old %{a}".getBytes(StandardCharsets.UTF_8));
+            TemplateProgram reloaded = TemplateProgram.compile("new %{a}".getBytes(StandardCharsets.UTF_8));
+            TemplateCache.Entry entry = new TemplateCache.Entry(old);
+            entry.setProgram(reloaded);
+            assertNull("Stale", entry.renderer(old));
+            assertNull("Stale", entry.renderer(old));
+            entry.renderer(reloaded);
+            assertSame("Promoted", reloaded, entry.renderer(reloaded).program);
+        } finally {
+            cache.setPromoteAfter(0);
+        }
+    }
+
+    @Test
+    public void testStrictNesting() throws Exception {
+        File tpl = File.createTempFile("nesting", ".txt");
+        Files.write(tpl.toPath(), "Line 1\n%{ifDef#a}Line 2 %{fi#}%{fi#}".getBytes(StandardCharsets.UTF_8));
+        TemplateCache cache = TemplateCache.getInstance();
+        try {
+            assertEquals("", "Line 1\n", new Template(tpl.getPath()).parse(new HashMap<>()));
+            cache.clear();
+            cache.setStrictNesting(true);
+            try {
+                new Template(tpl.getPath());
+                fail("Loaded");
+            } catch (TemplateException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().endsWith("fi# without ifDef# or ifUnDef# at line 2"));
+            }
+        } finally {
+            cache.setStrictNesting(false);
+            tpl.delete();
+        }
+    }
+
+    @Test
+    public void testWatcherReload() throws Exception {
+        File dir = Files.createTempDirectory("watch").toFile();
+        File tpl = new File(dir, "watched.txt");
+        Files.write(tpl.toPath(), "Version %{v}".getBytes(StandardCharsets.UTF_8));
+        final CountDownLatch latch = new CountDownLatch(1);
+        TemplateWatcher watcher = TemplateWatcher.getInstance();
+        try {
+            /*
+            A path that is not normalised still maps to the watched file
+             */
+            Template template = new Template(dir.getPath() + "/./watched.txt");
+            watcher.start(new TemplateWatcher.Listener() {
+                @Override
+                public void reloaded(String location) {
+                    if (location.endsWith("watched.txt")) {
+                        latch.countDown();
+                    }
+                }
+
+                @Override
+                public void failed(String location, Exception ex) {
+                }
+            });
+            Map<String, Object> data = new HashMap<>();
+            data.put("v", "1");
+            assertEquals("", "Version 1", template.parse(data));
+            Files.write(tpl.toPath(), "New version %{v}".getBytes(StandardCharsets.UTF_8));
+            assertTrue("Reload not seen", latch.await(30, TimeUnit.SECONDS));
+            /*
+            The same Template instance sees the new version.
+             */
+            assertEquals("", "New version 1", template.parse(data));
+        } finally {
+            watcher.stop();
+            tpl.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+public class ExampleConcurrent {
+
+    private static final int THREADS = 8;
+    private static final int RENDERS_PER_THREAD = 500;
+    private static final int VARIANTS = 16;
+
+    @Test
+    public void testSharedTemplate() throws Exception {
+        /*
+        ONE template instance shared by all threads.
+         */
+        final Template template = new Template("src/test/resources/file_040.txt");
+        /*
+        Render each variant single threaded to get the expected results.
+         */
+        final String[] expected = new String[VARIANTS];
+        for (int v = 0; v < VARIANTS; v++) {
+            expected[v] = template.parse(data(v));
+        }
+        assertTrue("", expected[1].contains("Flag on"));
+        assertTrue("", expected[2].contains("Flag off"));
+        assertTrue("", expected[0].contains("Bundle date = 1st July"));
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int seed = t;
+                results.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int count = 0;
+                        for (int i = 0; i < RENDERS_PER_THREAD; i++) {
+                            int v = (seed + i) % VARIANTS;
+                            assertEquals("Variant " + v, expected[v], template.parse(data(v)));
+                            count++;
+                        }
+                        return count;
+                    }
+                }));
+            }
+            for (Future<Integer> f : results) {
+                assertEquals("", RENDERS_PER_THREAD, f.get().intValue());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelRepeat() throws Exception {
+        Template sequential = new Template("src/test/resources/file_040.txt");
+        Template parallel = new Template("src/test/resources/file_040.txt");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallel.setParallelRepeat(100, pool);
+            assertEquals("", 100, parallel.getParallelRepeatThreshold());
+            for (int rows : new int[]{0, 99, 100, 101, 5000}) {
+                Map<String, Object> data = data(rows);
+                String expected = sequential.parse(data);
+                assertEquals("Rows " + rows, expected, parallel.parse(data));
+                StringBuilder sb = new StringBuilder();
+                parallel.render(data, sb);
+                assertEquals("Rows " + rows, expected, sb.toString());
+            }
+            assertTrue("", sequential.parse(data(5000)).contains("odd row 4999 of 5000"));
+            /*
+            A row that fails. The chunks after it are dropped and the template
+            still renders the same after it.
+             */
+            Map<String, Object> failing = data(5000);
+            Map<String, Object> row = (Map<String, Object>) ((List) failing.get("file_040_1.txt")).get(2500);
+            row.put("lineText", (Supplier<String>) () -> {
+                throw new IllegalStateException("Row 2500");
+            });
+            try {
+                parallel.parse(failing);
+                fail("Row 2500 should fail");
+            } catch (RuntimeException ex) {
+                assertTrue(ex.toString(), String.valueOf(ex).contains("Row 2500") || String.valueOf(ex.getCause()).contains("Row 2500"));
+            }
+            assertEquals("", sequential.parse(data(5000)), parallel.parse(data(5000)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelRepeatWithSetIsSequential() throws Exception {
+        /*
+        Only the first row is rendered before first is removed so the rows must
+        be rendered in order.
+         */
+        Template parallel = new Template("src/test/resources/file_041.txt");
+        parallel.setParallelRepeat(10);
+        List<Map<String, Object>> list = new ArrayList<>();
+        StringBuilder expected = new StringBuilder("Start\nfirst ");
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> m = new HashMap<>();
+            m.put("lineText", "row " + i);
+            list.add(m);
+            expected.append("row ").append(i).append('\n');
+        }
+        expected.append("End done");
+        Map<String, Object> data = new HashMap<>();
+        data.put("first", "first");
+        data.put("file_041_1.txt", list);
+        assertEquals("", expected.toString(), parallel.parse(data));
+    }
+
+    @Test
+    public void testParallelRepeatSeesReloadedInclude() throws Exception {
+        File dir = Files.createTempDirectory("parallel").toFile();
+        File main = new File(dir, "main.txt");
+        File row = new File(dir, "row.txt");
+        File inc = new File(dir, "inc.txt");
+        Files.write(main.toPath(), "%{repeat#row.txt}".getBytes(StandardCharsets.UTF_8));
+        Files.write(row.toPath(), "%{template#inc.txt}".getBytes(StandardCharsets.UTF_8));
+        Files.write(inc.toPath(), "%{lineText}\n".getBytes(StandardCharsets.UTF_8));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Template template = new Template(main.getPath());
+            template.setParallelRepeat(10, pool);
+            /*
+            Each row records the thread it was rendered on
+             */
+            Set<Thread> threads = ConcurrentHashMap.newKeySet();
+            List<Map<String, Object>> list = new ArrayList<>();
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                Map<String, Object> m = new HashMap<>();
+                String text = "row " + i;
+                m.put("lineText", (Supplier<String>) () -> {
+                    threads.add(Thread.currentThread());
+                    return text;
+                });
+                list.add(m);
+                expected.append(text).append('\n');
+            }
+            Map<String, Object> data = new HashMap<>();
+            data.put("row.txt", list);
+            assertEquals("", expected.toString(), template.parse(data));
+            assertEquals("", expected.toString(), template.parse(data));
+            /*
+            The include now changes the data so the rows must be rendered in
+            order, on this thread.
+             */
+            Files.write(inc.toPath(), "%{unSet#first}%{lineText}\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue("", TemplateCache.getInstance().reload(Template.fileLocation(inc), () -> {
+                try {
+                    return TemplateProgram.compile(Files.readAllBytes(inc.toPath()));
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }));
+            threads.clear();
+            assertEquals("", expected.toString(), template.parse(data));
+            assertEquals("", Collections.singleton(Thread.currentThread()), threads);
+        } finally {
+            pool.shutdown();
+            for (File f : new File[]{main, row, inc}) {
+                TemplateCache.getInstance().remove(Template.fileLocation(f));
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testRenderAsync() throws Exception {
+        /*
+        file_042.txt has independent sibling includes so they are rendered
+        concurrently. file_040.txt has a repeat# so it is not.
+         */
+        Template page = new Template("src/test/resources/file_042.txt");
+        Template repeat = new Template("src/test/resources/file_040.txt");
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int v = 0; v < VARIANTS; v++) {
+                Map<String, Object> data = data(v);
+                String expected = page.parse(data);
+                assertEquals("Variant " + v, expected, page.renderAsync(data).get());
+                assertEquals("Variant " + v, expected, page.renderAsync(data, single).get());
+                assertEquals("Variant " + v, expected, page.renderAsync(data, pool).get());
+                assertEquals("Variant " + v, repeat.parse(data), repeat.renderAsync(data, pool).get());
+            }
+            String text = page.renderAsync(data(1), pool).get();
+            assertTrue(text, text.startsWith("Page Name1\n[Import value = Name1]\n[Section F1 1st July Import value = Name1 Import value = Name1]\n"));
+            assertTrue(text, text.contains("Template:missing_042.txt:notFound"));
+            assertTrue(text, text.endsWith("[Unterminated {{+++ERROR: SUBSTITUTION VAR NOT TERMINATED +++}}]\nEnd 1st July\n"));
+        } finally {
+            single.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRenderAsyncLoadsIncludes() throws Exception {
+        TemplateCache.getInstance().clear();
+        Template page = new Template("src/test/resources/file_042.txt");
+        assertFalse("", TemplateCache.getInstance().contains("file:" + new File("src/test/resources/file_042_1.txt").getAbsolutePath()));
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            assertEquals("", page.parse(data(3)), page.renderAsync(data(3), pool).get());
+            assertTrue("", TemplateCache.getInstance().contains("file:" + new File("src/test/resources/file_042_1.txt").getAbsolutePath()));
+            assertTrue("", TemplateCache.getInstance().contains("file:" + new File("src/test/resources/file_010_1.txt").getAbsolutePath()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRenderPublisher() throws Exception {
+        Template page = new Template("src/test/resources/file_040.txt");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            for (int v = 0; v < VARIANTS; v++) {
+                Map<String, Object> data = data(v);
+                for (int size : new int[]{1, 3, 16, 100}) {
+                    String label = "Variant " + v + " size " + size;
+                    ChunkCollector collector = new ChunkCollector(1);
+                    page.renderPublisher(data, false, pool, size).subscribe(collector);
+                    assertTrue(label, collector.done.await(30, TimeUnit.SECONDS));
+                    assertNull(label, collector.error);
+                    assertEquals(label, 1, collector.signals.get());
+                    assertEquals(label, page.parse(data), new String(collector.bytes.toByteArray(), StandardCharsets.UTF_8));
+                    /*
+                    All chunks are full except the last
+                     */
+                    for (int i = 0; i < collector.sizes.size() - 1; i++) {
+                        assertEquals(label, size, collector.sizes.get(i).intValue());
+                    }
+                }
+            }
+            /*
+            Nothing is rendered until the subscriber asks
+             */
+            ChunkCollector idle = new ChunkCollector(0);
+            page.renderPublisher(data(3), false, pool, 16).subscribe(idle);
+            assertFalse("", idle.done.await(100, TimeUnit.MILLISECONDS));
+            assertEquals("", 0, idle.sizes.size());
+            idle.subscription.request(Long.MAX_VALUE);
+            assertTrue("", idle.done.await(30, TimeUnit.SECONDS));
+            assertEquals("", page.parse(data(3)), new String(idle.bytes.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRenderPublisherCancel() throws Exception {
+        Template template = new Template("src/test/resources/file_005.txt");
+        final AtomicBoolean closed = new AtomicBoolean();
+        final CountDownLatch closedLatch = new CountDownLatch(1);
+        Map<String, Object> data = new HashMap<>();
+        data.put("file_005_1.txt", IntStream.range(0, 1000000).mapToObj(i -> {
+            Map<String, Object> m = new HashMap<>();
+            m.put("lineText", "Line " + i);
+            return m;
+        }).onClose(() -> {
+            closed.set(true);
+            closedLatch.countDown();
+        }));
+        ChunkCollector collector = new ChunkCollector(1) {
+            @Override
+            public void onNext(ByteBuffer item) {
+                super.onNext(item);
+                subscription.cancel();
+            }
+        };
+        template.renderPublisher(data).subscribe(collector);
+        assertTrue("Not closed", closedLatch.await(30, TimeUnit.SECONDS));
+        assertTrue("", closed.get());
+        assertEquals("Chunks", 1, collector.sizes.size());
+        assertEquals("Size", TemplateOutput.ByteOutput.DEFAULT_SIZE, collector.sizes.get(0).intValue());
+        assertEquals("Signalled", 1, collector.done.getCount());
+    }
+
+    @Test
+    public void testRenderPublisherErrors() throws Exception {
+        Template page = new Template("src/test/resources/file_040.txt");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            /*
+            A bad request before the render starts is signalled once and no
+            render is started
+             */
+            ChunkCollector idle = new ChunkCollector(0);
+            page.renderPublisher(data(1), false, pool, 16).subscribe(idle);
+            idle.subscription.request(0);
+            idle.subscription.request(1);
+            assertTrue("", idle.done.await(30, TimeUnit.SECONDS));
+            assertTrue("", idle.error instanceof IllegalArgumentException);
+            assertEquals("", 0, idle.sizes.size());
+            /*
+            A bad request while rendering is signalled by the render thread
+            once it stops
+             */
+            ChunkCollector bad = new ChunkCollector(1) {
+                @Override
+                public void onNext(ByteBuffer item) {
+                    super.onNext(item);
+                    subscription.request(-1);
+                }
+            };
+            page.renderPublisher(data(1), false, pool, 16).subscribe(bad);
+            assertTrue("", bad.done.await(30, TimeUnit.SECONDS));
+            assertTrue("", bad.error instanceof IllegalArgumentException);
+            /*
+            A refused render
+             */
+            ChunkCollector refused = new ChunkCollector(1);
+            page.renderPublisher(data(1), false, r -> {
+                throw new RejectedExecutionException("Full");
+            }, 16).subscribe(refused);
+            assertTrue("", refused.done.await(30, TimeUnit.SECONDS));
+            assertTrue("", refused.error instanceof RejectedExecutionException);
+            pool.shutdown();
+            assertTrue("", pool.awaitTermination(30, TimeUnit.SECONDS));
+            for (ChunkCollector c : new ChunkCollector[]{idle, bad, refused}) {
+                assertEquals("Signals", 1, c.signals.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static class ChunkCollector implements Flow.Subscriber<ByteBuffer> {
+
+        private final int batch;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Integer> sizes = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger signals = new AtomicInteger();
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        private ChunkCollector(int batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (batch > 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            sizes.add(item.remaining());
+            bytes.write(item.array(), item.arrayOffset() + item.position(), item.remaining());
+            if (batch > 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            signals.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            signals.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    private static Map<String, Object> data(int variant) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "Name" + variant);
+        if (variant % 2 == 1) {
+            data.put("flag", "F" + variant);
+        }
+        if (variant % 4 == 3) {
+            data.put("other", "O");
+        }
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (int i = 0; i < variant; i++) {
+            Map<String, Object> m = new HashMap<>();
+            if (i % 2 == 1) {
+                m.put("odd", Boolean.TRUE);
+            }
+            m.put("lineText", "row " + i + " of " + variant);
+            list.add(m);
+        }
+        data.put("file_040_1.txt", list);
+        return data;
+    }
+}
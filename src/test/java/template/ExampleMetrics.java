@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+public class ExampleMetrics {
+
+    private static String location(String fileName) {
+        return Template.FILE_PREFIX + new File(fileName).getAbsolutePath();
+    }
+
+    @Test
+    public void testRenderIncludeAndLoadCounts() {
+        DefaultTemplateMetrics metrics = new DefaultTemplateMetrics();
+        TemplateCache.getInstance().clear();
+        Template.setMetrics(metrics);
+        try {
+            Map<String, Object> data = new HashMap<>();
+            data.put("name", "Jo Bloggs");
+            Template template = new Template("src/test/resources/file_010.txt");
+            String text = template.parse(data);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            template.render(data, bytes);
+            StringBuilder chars = new StringBuilder();
+            template.render(data, chars);
+
+            DefaultTemplateMetrics.TemplateStats stats = metrics.snapshot().getTemplates().get(location("src/test/resources/file_010.txt"));
+            assertEquals("Renders", 3, stats.getRenders());
+            assertEquals("Includes", 3, stats.getIncludes());
+            assertEquals("Loads", 1, stats.getLoads());
+            assertEquals("Unresolved", 0, stats.getUnresolved());
+            long size = text.getBytes(StandardCharsets.UTF_8).length;
+            assertEquals("Size", (2 * size) + text.length(), stats.getSize());
+            assertTrue("Latency", stats.getLatencyPercentile(100) >= stats.getMeanNanos());
+            /*
+            Each include is a render of the included template. Its time is
+            also part of the time of the including template.
+             */
+            DefaultTemplateMetrics.TemplateStats inc = metrics.snapshot().getTemplates().get(location("src/test/resources/file_010_1.txt"));
+            assertEquals("Renders", 3, inc.getRenders());
+            assertEquals("Loads", 1, inc.getLoads());
+            assertTrue("Size", inc.getSize() > 0);
+            assertTrue("Size", inc.getSize() < stats.getSize());
+            assertTrue("Nanos", inc.getTotalNanos() <= stats.getTotalNanos());
+        } finally {
+            Template.setMetrics(null);
+        }
+    }
+
+    @Test
+    public void testRepeatAndUnresolvedCounts() {
+        DefaultTemplateMetrics metrics = new DefaultTemplateMetrics();
+        Template.setMetrics(metrics);
+        try {
+            Template template = new Template("src/test/resources/file_005.txt");
+            Map<String, Object> data = new HashMap<>();
+            List<Map<String, Object>> list = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                Map<String, Object> m = new HashMap<>();
+                m.put("lineText", "Line " + i);
+                list.add(m);
+            }
+            data.put("file_005_1.txt", list);
+            template.parse(data);
+            DefaultTemplateMetrics.Snapshot snapshot = metrics.snapshot();
+            DefaultTemplateMetrics.TemplateStats stats = snapshot.getTemplates().get(location("src/test/resources/file_005.txt"));
+            assertEquals("Repeats", 1, stats.getRepeats());
+            assertEquals("Rows", 10, stats.getRepeatRows());
+            assertEquals("Max rows", 10, stats.getMaxRepeatRows());
+            /*
+            Each row is a render of the row template
+             */
+            DefaultTemplateMetrics.TemplateStats row = snapshot.getTemplates().get(location("src/test/resources/file_005_1.txt"));
+            assertEquals("Row renders", 10, row.getRenders());
+            assertTrue("Row nanos", row.getTotalNanos() <= stats.getTotalNanos());
+            /*
+            name, date and num (twice) are not in the data
+             */
+            assertEquals("Unresolved", 4, stats.getUnresolved());
+            assertTrue("Hit rate", snapshot.getTemplateCacheHitRate() > 0.0);
+        } finally {
+            Template.setMetrics(null);
+        }
+    }
+
+    @Test
+    public void testProfile() {
+        Template template = new Template("src/test/resources/file_005.txt");
+        Map<String, Object> data = new HashMap<>();
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> m = new HashMap<>();
+            m.put("lineText", "Line " + i);
+            list.add(m);
+        }
+        data.put("file_005_1.txt", list);
+        TemplateProfile profile = template.profile(data);
+        assertEquals("Text", template.parse(data), profile.getText());
+
+        TemplateProfile.Node root = profile.getRoot();
+        assertEquals("Name", "Template:file_005.txt", root.getName());
+        assertEquals("Calls", 1, root.getCalls());
+        assertEquals("Size", profile.getText().length(), root.getSize());
+        assertEquals("Misses", 4, root.getMisses());
+        assertEquals("Children", 1, root.getChildren().size());
+
+        TemplateProfile.Node repeat = root.getChildren().get(0);
+        assertEquals("Name", "repeat#file_005_1.txt", repeat.getName());
+        assertEquals("Calls", 1, repeat.getCalls());
+        TemplateProfile.Node rows = repeat.getChildren().get(0);
+        assertEquals("Name", "file_005_1.txt", rows.getName());
+        assertEquals("Calls", 10, rows.getCalls());
+        assertEquals("Size", repeat.getSize(), rows.getSize());
+        assertTrue("Exclusive", root.getExclusiveNanos() <= root.getInclusiveNanos() - repeat.getInclusiveNanos());
+        assertTrue("Text", profile.toString().startsWith("Template:file_005.txt calls=1 "));
+        assertTrue("Text", profile.toString().contains("\n    file_005_1.txt calls=10 "));
+    }
+
+    @Test
+    public void testLatencyBuckets() {
+        assertEquals("", 0, DefaultTemplateMetrics.bucket(0));
+        assertEquals("", 0, DefaultTemplateMetrics.bucket(1023));
+        assertEquals("", 1, DefaultTemplateMetrics.bucket(1024));
+        assertEquals("", 2048, DefaultTemplateMetrics.getBucketLimit(1));
+        assertEquals("", DefaultTemplateMetrics.LATENCY_BUCKETS - 1, DefaultTemplateMetrics.bucket(Long.MAX_VALUE));
+    }
+}
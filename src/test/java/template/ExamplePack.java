@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2018 stuartdd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package template;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+public class ExamplePack {
+
+    private static final File DIR = new File("src/test/resources");
+
+    @Test
+    public void testWriteAndLoad() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "Jo Bloggs");
+        TemplateCache cache = TemplateCache.getInstance();
+        cache.clear();
+        String expected = new Template("src/test/resources/file_010.txt").parse(data);
+        String expectedCp = new Template("classpath:/file_011.txt").parse(data);
+
+        byte[] pack = pack("file_010.txt", "file_010_1.txt", "classpath:/file_011.txt", "classpath:/file_010_1.txt");
+        cache.clear();
+        assertEquals("", 4, TemplatePack.load(new ByteArrayInputStream(pack), DIR));
+        assertEquals("", 4, cache.size());
+        long misses = cache.getMisses();
+        assertEquals("", expected, new Template("src/test/resources/file_010.txt").parse(data));
+        assertEquals("", expectedCp, new Template("classpath:/file_011.txt").parse(data));
+        /*
+        Everything came from the pack. Nothing was loaded from source.
+         */
+        assertEquals("", misses, cache.getMisses());
+        cache.clear();
+    }
+
+    @Test
+    public void testChangedSourceIsNotLoaded() throws Exception {
+        Map<String, byte[]> sources = new LinkedHashMap<>();
+        sources.put("file_010_1.txt", "Stale %{name}".getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TemplatePack.write(out, sources);
+        TemplateCache cache = TemplateCache.getInstance();
+        cache.clear();
+        assertEquals("", 0, TemplatePack.load(new ByteArrayInputStream(out.toByteArray()), DIR));
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "Jo");
+        assertEquals("", "Import value = Jo", new Template("src/test/resources/file_010_1.txt").parse(data).trim());
+        cache.clear();
+    }
+
+    @Test
+    public void testReadBack() throws Exception {
+        byte[] pack = pack("file_040.txt", "file_041.txt");
+        List<TemplatePack.Entry> entries = TemplatePack.read(new ByteArrayInputStream(pack));
+        assertEquals("", 2, entries.size());
+        TemplatePack.Entry entry = entries.get(0);
+        assertEquals("", "file_040.txt", entry.name);
+        TemplateProgram compiled = TemplateProgram.compile(Files.readAllBytes(new File(DIR, "file_040.txt").toPath()));
+        assertEquals("", compiled.instructions.length, entry.program.instructions.length);
+        for (int i = 0; i < compiled.instructions.length; i++) {
+            assertEquals("", compiled.instructions[i].op, entry.program.instructions[i].op);
+            assertEquals("", compiled.instructions[i].name, entry.program.instructions[i].name);
+            assertEquals("", compiled.instructions[i].value, entry.program.instructions[i].value);
+        }
+        assertEquals("", 3, entry.references.length);
+        assertEquals("", "bundle.properties", entry.references[0].name);
+        assertEquals("", "file_040_1.txt", entry.references[1].name);
+        assertEquals("", "file_010_1.txt", entry.references[2].name);
+        assertTrue("", entries.get(1).program.hasSideEffects);
+        try {
+            TemplatePack.read(new ByteArrayInputStream("Not a pack".getBytes(StandardCharsets.UTF_8)));
+            fail("Not a pack");
+        } catch (TemplateException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Not a template pack"));
+        }
+        /*
+        An instruction this version does not know
+         */
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(TemplatePack.MAGIC);
+        data.writeShort(TemplatePack.VERSION);
+        data.writeInt(1);
+        data.writeUTF("bad.txt");
+        data.write(new byte[32]);
+        data.writeInt(0);
+        data.writeInt(0);
+        data.writeInt(1);
+        data.writeByte(TemplateProgram.FILTERED_VAR + 1);
+        data.writeInt(-1);
+        data.writeInt(-1);
+        data.writeInt(0);
+        try {
+            TemplatePack.read(new ByteArrayInputStream(bytes.toByteArray()));
+            fail("Unknown instruction");
+        } catch (TemplateException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Template [bad.txt] has an unknown instruction 17"));
+        }
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        File good = File.createTempFile("good", TemplatePack.EXTENSION);
+        File bad = File.createTempFile("bad", TemplatePack.EXTENSION);
+        File root = Files.createTempDirectory("index").toFile();
+        try {
+            Map<String, byte[]> sources = new LinkedHashMap<>();
+            sources.put("classpath:/file_011.txt", Files.readAllBytes(new File(DIR, "file_011.txt").toPath()));
+            sources.put("classpath:/file_012.txt", "Stale %{name}".getBytes(StandardCharsets.UTF_8));
+            sources.put("classpath:/not_a_resource.txt", "Only in the pack".getBytes(StandardCharsets.UTF_8));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TemplatePack.write(out, sources);
+            Files.write(good.toPath(), out.toByteArray());
+            Files.write(bad.toPath(), "Not a pack".getBytes(StandardCharsets.UTF_8));
+            /*
+            A pack that cannot be read is reported and the others are used
+             */
+            List<String> problems = new ArrayList<>();
+            Map<String, TemplateIndex.Indexed> entries = TemplateIndex.load(Collections.enumeration(Arrays.asList(bad.toURI().toURL(), good.toURI().toURL())), problems);
+            assertEquals("", 3, entries.size());
+            assertEquals("", 1, problems.size());
+            assertTrue(problems.get(0), problems.get(0).contains("Not a template pack"));
+            /*
+            A pack that is not in the same place as the templates is only used
+            if the source is unchanged (or gone)
+             */
+            assertNotNull("", TemplateIndex.verified(entries.get("classpath:/file_011.txt"), Template.class.getResource("/file_011.txt")));
+            assertNull("", TemplateIndex.verified(entries.get("classpath:/file_012.txt"), Template.class.getResource("/file_012.txt")));
+            assertNotNull("", TemplateIndex.verified(entries.get("classpath:/not_a_resource.txt"), null));
+            /*
+            A template in the same jar (or directory) as the pack is used
+            without reading it
+             */
+            File indexFile = new File(root, TemplateCompiler.INDEX);
+            indexFile.getParentFile().mkdirs();
+            Files.write(indexFile.toPath(), out.toByteArray());
+            File stale = new File(root, "file_012.txt");
+            Files.write(stale.toPath(), "Changed %{name}".getBytes(StandardCharsets.UTF_8));
+            entries = TemplateIndex.load(Collections.enumeration(Arrays.asList(indexFile.toURI().toURL())), problems);
+            assertNotNull("", TemplateIndex.verified(entries.get("classpath:/file_012.txt"), stale.toURI().toURL()));
+            assertNull("", TemplateIndex.verified(entries.get("classpath:/file_012.txt"), Template.class.getResource("/file_012.txt")));
+            stale.delete();
+            indexFile.delete();
+            indexFile.getParentFile().delete();
+            indexFile.getParentFile().getParentFile().delete();
+        } finally {
+            good.delete();
+            bad.delete();
+            root.delete();
+        }
+    }
+
+    @Test
+    public void testCompilerCheck() throws Exception {
+        File dir = Files.createTempDirectory("compiler").toFile();
+        File tpl = new File(dir, "nesting.txt");
+        try {
+            Files.write(tpl.toPath(), "Line 1\n%{ifDef#a}Line 2 %{fi#}%{fi#} %{template#missing.txt}".getBytes(StandardCharsets.UTF_8));
+            List<String> errors = new TemplateCompiler(Arrays.asList(dir), "txt").check();
+            assertEquals("", 2, errors.size());
+            assertEquals("", tpl.getPath() + ":2: template#missing.txt not found", errors.get(0));
+            assertEquals("", tpl.getPath() + ": fi# without ifDef# or ifUnDef# at line 2", errors.get(1));
+        } finally {
+            tpl.delete();
+            dir.delete();
+        }
+    }
+
+    private static byte[] pack(String... names) throws Exception {
+        Map<String, byte[]> sources = new LinkedHashMap<>();
+        for (String name : names) {
+            if (name.startsWith("classpath:")) {
+                sources.put(name, Files.readAllBytes(new File(DIR, name.substring("classpath:/".length())).toPath()));
+            } else {
+                sources.put(name, Files.readAllBytes(new File(DIR, name).toPath()));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TemplatePack.write(out, sources);
+        return out.toByteArray();
+    }
+}
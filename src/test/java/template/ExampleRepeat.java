@@ -16,11 +16,17 @@
  */
 package template;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 import static junit.framework.Assert.*;
 import org.junit.Test;
 
@@ -78,7 +84,152 @@ public class ExampleRepeat {
         assertEquals("Result", EXPECTED, testRepeatWithTwoFiles("classpath:/file_008.txt", "src/test/resources/file_005_1.txt"));
     }
 
+    @Test
+    public void testStreamingSources() {
+        assertEquals("Iterable", EXPECTED, testRepeatWithTwoFiles("src/test/resources/file_005.txt", "file_005_1.txt",
+                list -> Collections.unmodifiableCollection(list)));
+        assertEquals("Iterator", EXPECTED, testRepeatWithTwoFiles("src/test/resources/file_005.txt", "file_005_1.txt",
+                list -> list.iterator()));
+        final AtomicBoolean streamClosed = new AtomicBoolean();
+        assertEquals("Stream", EXPECTED, testRepeatWithTwoFiles("src/test/resources/file_005.txt", "file_005_1.txt",
+                list -> list.stream().onClose(() -> streamClosed.set(true))));
+        assertTrue("Stream closed", streamClosed.get());
+        final AtomicBoolean cursorClosed = new AtomicBoolean();
+        assertEquals("Cursor", EXPECTED, testRepeatWithTwoFiles("src/test/resources/file_005.txt", "file_005_1.txt",
+                list -> cursor(list.iterator(), cursorClosed)));
+        assertTrue("Cursor closed", cursorClosed.get());
+    }
+
+    @Test
+    public void testStreamingSourceClosedOnFailure() {
+        final AtomicBoolean closed = new AtomicBoolean();
+        try {
+            testRepeatWithTwoFiles("src/test/resources/file_005.txt", "file_005_1.txt", list -> new RowCursor() {
+                @Override
+                public Map next() throws Exception {
+                    throw new java.sql.SQLException("Connection lost");
+                }
+
+                @Override
+                public void close() {
+                    closed.set(true);
+                }
+            });
+            fail("No exception");
+        } catch (TemplateException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Connection lost"));
+        }
+        assertTrue("Closed", closed.get());
+        /*
+        A failure to close is kept with the failure of the repeat, or fails a
+        repeat that worked
+         */
+        try {
+            testRepeatWithTwoFiles("src/test/resources/file_005.txt", "file_005_1.txt", list -> new RowCursor() {
+                @Override
+                public Map next() throws Exception {
+                    throw new java.sql.SQLException("Connection lost");
+                }
+
+                @Override
+                public void close() {
+                    throw new IllegalStateException("Close failed");
+                }
+            });
+            fail("No exception");
+        } catch (TemplateException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Connection lost"));
+            assertEquals("Close failed", ex.getCause().getSuppressed()[0].getMessage());
+        }
+        try {
+            testRepeatWithTwoFiles("src/test/resources/file_005.txt", "file_005_1.txt", list -> new RowCursor() {
+                @Override
+                public Map next() {
+                    return null;
+                }
+
+                @Override
+                public void close() {
+                    throw new IllegalStateException("Close failed");
+                }
+            });
+            fail("No exception");
+        } catch (IllegalStateException ex) {
+            assertEquals("", "Close failed", ex.getMessage());
+        }
+        /*
+        A row that is not a Map ends the repeat. The rows before it are kept.
+         */
+        closed.set(false);
+        String text = testRepeatWithTwoFiles("src/test/resources/file_005.txt", "file_005_1.txt", list -> {
+            List<Object> rows = new ArrayList<>(list);
+            rows.add(1, "Not a map");
+            return new ClosingIterator(rows.iterator(), closed);
+        });
+        assertTrue(text, text.contains("Line 1 of 3 : Some text from line 1. Note there is a new line at the end of this file\n"
+                + "{{+++ERROR: Repeat template property:file_005_1.txt must only contain java.util.Map objects +++}}"));
+        assertTrue("Closed", closed.get());
+    }
+
+    @Test
+    public void testLargeStreamToOutputStream() {
+        Template template = new Template("src/test/resources/file_005.txt");
+        Map<String, Object> data = new HashMap<>();
+        data.put("file_005_1.txt", IntStream.range(0, 100000).mapToObj(i -> {
+            Map<String, Object> m = new HashMap<>();
+            m.put("lineText", "Line " + i);
+            return m;
+        }));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.render(data, out);
+        assertTrue("Last row", out.toString().contains(": Line 99999. Note"));
+    }
+
+    private static RowCursor cursor(final Iterator<Map<String, Object>> rows, final AtomicBoolean closed) {
+        return new RowCursor() {
+            @Override
+            public Map next() {
+                return rows.hasNext() ? rows.next() : null;
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+    }
+
+    private static final class ClosingIterator implements Iterator<Object>, AutoCloseable {
+
+        private final Iterator<Object> rows;
+        private final AtomicBoolean closed;
+
+        private ClosingIterator(Iterator<Object> rows, AtomicBoolean closed) {
+            this.rows = rows;
+            this.closed = closed;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return rows.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            return rows.next();
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+
     public String testRepeatWithTwoFiles(String mainFile, String repeatFile) {
+        return testRepeatWithTwoFiles(mainFile, repeatFile, list -> list);
+    }
+
+    public String testRepeatWithTwoFiles(String mainFile, String repeatFile, Function<List<Map<String, Object>>, Object> rows) {
         /*
         Create a map with the data in it
          */
@@ -112,7 +263,7 @@ public class ExampleRepeat {
         /*
         Add the list to the data. Note the file name is the property name.
          */
-        data.put(repeatFile, list); // Add the Maps to the list }            
+        data.put(repeatFile, rows.apply(list)); // Add the Maps to the list }            
         /*
         Create the resultant string.
          */
@@ -16,15 +16,41 @@
  */
 package template;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import static junit.framework.Assert.*;
+import org.junit.After;
 import org.junit.Test;
 
 public class ExampleTemplate {
 
     private static final String EXPECTED = "Name value = Jo Bloggs Java Version = 11. Note this is not provided via the data object. >>>Import value = Jo Bloggs<<<";
 
+    /*
+    Writers and filters are global. Put them back so no test depends on the
+    order the tests run in.
+     */
+    @After
+    public void resetValueHandlers() {
+        ValueWriters.reset();
+        ValueFilters.reset();
+    }
+
     @Test
     public void testImportFile() {
         assertEquals("", EXPECTED, clean(testImport("src/test/resources/file_010.txt")));
@@ -60,6 +86,337 @@ public class ExampleTemplate {
         assertEquals("", EXPECTED, clean(testImportDefered("src/test/resources/file_013.txt", "classpath:/file_010_1.txt")));
     }
 
+    @Test
+    public void testRenderToWriterAndStream() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "Jo Bloggs");
+        Template template = new Template("src/test/resources/file_010.txt");
+        StringWriter writer = new StringWriter();
+        template.render(data, writer);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        template.render(data, stream);
+        assertEquals("", EXPECTED, clean(writer.toString()));
+        assertEquals("", writer.toString(), new String(stream.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testUtf8() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "Zoë €𝄞");
+        Template template = new Template("src/test/resources/file_030.txt");
+        String expected = "Grüße Zoë €𝄞 – 100% € 𝄞";
+        assertEquals("", expected, template.parse(data));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        template.render(data, stream);
+        assertEquals("", expected, new String(stream.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals("", "Grüße Zoë €𝄞", Template.parse("Grüße %{name}", data));
+    }
+
+    @Test
+    public void testLazyValues() {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger hidden = new AtomicInteger();
+        Map<String, Object> data = new HashMap<>();
+        data.put("table", (Supplier<String>) () -> "T" + calls.incrementAndGet());
+        data.put("unused", (Supplier<String>) () -> "U" + hidden.incrementAndGet());
+        data.put("missing", (Supplier<String>) () -> null);
+        data.put("costly", new Object() {
+            @Override
+            public String toString() {
+                return "C" + hidden.incrementAndGet();
+            }
+        });
+        /*
+        Got once per parse, never got in a block that is not included.
+         */
+        assertEquals("", "T1 T1 yes", Template.parse("%{table} %{table} %{ifDef#table}yes%{fi#}%{ifUnDef#table}%{unused}%{costly}%{fi#}", data));
+        assertEquals("", "T2", Template.parse("%{table}%{ifDef#missing}%{unused}%{listData}%{fi#}", data));
+        assertEquals("", 2, calls.get());
+        assertEquals("", 0, hidden.get());
+        assertEquals("", "{{+++ERROR: 'template?missing' SUBSTITUTION VAR NOT FOUND +++}}", Template.parse("%{missing}", data));
+        /*
+        Suppliers that are equals() are still got one by one
+         */
+        data.put("a", new Constant("A"));
+        data.put("b", new Constant("B"));
+        assertEquals("", "A B A", Template.parse("%{a} %{b} %{a}", data));
+    }
+
+    /*
+    A Supplier with a value based equals() that says they are all equal.
+     */
+    private static final class Constant implements Supplier<String> {
+
+        private final String value;
+
+        private Constant(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String get() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Constant;
+        }
+
+        @Override
+        public int hashCode() {
+            return 1;
+        }
+    }
+
+    @Test
+    public void testValueWriters() throws Exception {
+        List<Object> values = new ArrayList<>(Arrays.asList(
+                0, -1, 7, Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, -1000000000000L,
+                (short) -12, (byte) 127, new AtomicInteger(-45), new AtomicLong(99),
+                0.0, -0.0, 42.0, -42.0, 9999999.0, 1.0E7, -1.0E7, 0.1, 1.5, 1.0E-5, Double.NaN, Double.NEGATIVE_INFINITY, Double.MAX_VALUE,
+                0.0f, -0.0f, 16.0f, 9999999.0f, 1.0E7f, 0.3f, Float.POSITIVE_INFINITY,
+                new BigDecimal("123"), new BigDecimal("-1234.56"), new BigDecimal("1E+3"), new BigDecimal("123456789012345678901234567890"), new BigDecimal("-999999999999999999"),
+                'x', 'é', '€', Boolean.TRUE, false, new StringBuilder("Zoë 𝄞"), new Date(1234567894L)));
+        StringBuilder text = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        Map<String, Object> data = new HashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            data.put("v" + i, values.get(i));
+            text.append("[%{v").append(i).append("}]");
+            expected.append('[').append(values.get(i).toString()).append(']');
+        }
+        /*
+        Written without toString() but the same text
+         */
+        assertEquals("", expected.toString(), Template.parse(text.toString(), data));
+        File tpl = File.createTempFile("values", ".txt");
+        try {
+            Files.write(tpl.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+            Template template = new Template(tpl.getPath());
+            StringBuilder chars = new StringBuilder();
+            template.render(data, chars);
+            assertEquals("", expected.toString(), chars.toString());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            template.render(data, bytes);
+            assertEquals("", expected.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            tpl.delete();
+        }
+        /*
+        A registered writer replaces toString()
+         */
+        ValueWriters.register(Date.class, (date, out) -> {
+            out.write("ms:");
+            out.write(date.getTime());
+        });
+        ValueWriters.register(Integer.class, (n, out) -> {
+            out.write('#');
+            out.write(n.longValue());
+        });
+        data.put("date", new Date(1234567894L));
+        try {
+            assertEquals("", "ms:1234567894 #-1 -12", Template.parse("%{date} %{v1} %{v8}", data));
+        } finally {
+            ValueWriters.remove(Date.class);
+            ValueWriters.remove(Integer.class);
+        }
+        assertEquals("", "-1", Template.parse("%{v1}", data));
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("text", "Tom & \"Jerry\" <b>'s</b>\n\t\\ Zoë € 𝄞\u2028");
+        data.put("plain", "Nothing to escape");
+        data.put("num", -12);
+        data.put("dbl", 2.5E-7);
+        data.put("dec", new BigDecimal("1E+3"));
+        assertEquals("", "Tom &amp; &quot;Jerry&quot; &lt;b&gt;&#39;s&lt;/b&gt;\n\t\\ Zoë € 𝄞\u2028", Template.parse("%{text|html}", data));
+        assertEquals("", "Tom & \\\"Jerry\\\" <b>'s</b>\\n\\t\\\\ Zoë € 𝄞\\u2028", Template.parse("%{text|json}", data));
+        assertEquals("", "Tom%20%26%20%22Jerry%22%20%3Cb%3E%27s%3C%2Fb%3E%0A%09%5C%20Zo%C3%AB%20%E2%82%AC%20%F0%9D%84%9E%E2%80%A8",
+                Template.parse("%{text|url}", data));
+        assertEquals("", "Nothing to escape|Nothing%20to%20escape", Template.parse("%{plain|json}|%{plain|url}", data));
+        assertEquals("", "-12 2.5E-7 1E%2B3", Template.parse("%{num|url} %{dbl|url} %{dec|url}", data));
+        /*
+        Unresolved values. Text after a | that is not a filter is part of the
+        value name.
+         */
+        assertEquals("", "%{missing|html}", Template.parse("%{missing|html}", data, true));
+        assertEquals("", "{{+++ERROR: 'template?missing|html' SUBSTITUTION VAR NOT FOUND +++}}", Template.parse("%{missing|html}", data));
+        assertEquals("", "{{+++ERROR: 'template?text|upper' SUBSTITUTION VAR NOT FOUND +++}}", Template.parse("%{text|upper}", data));
+        assertEquals("", "", Template.parse("%{ifDef#missing}%{text|upper}%{fi#}", data));
+        data.put("plain|upper", "A | in the name");
+        assertEquals("", "A | in the name", Template.parse("%{plain|upper}", data));
+        /*
+        A registered filter, and a registered writer is filtered. A template
+        loaded before the filter is registered (or after it is removed) uses
+        it from the next render.
+         */
+        File tpl = File.createTempFile("filters", ".txt");
+        TemplateCache cache = TemplateCache.getInstance();
+        try {
+            Files.write(tpl.toPath(), "%{plain|upper} %{text|html} %{ifDef#num}%{num|json}%{fi#} %{missing|url}".getBytes(StandardCharsets.UTF_8));
+            String text = new String(Files.readAllBytes(tpl.toPath()), StandardCharsets.UTF_8);
+            cache.setPromoteAfter(2);
+            String expected = Template.parse(text, data);
+            assertTrue(expected, expected.startsWith("A | in the name Tom &amp; "));
+            for (int i = 0; i < 3; i++) {
+                assertEquals("Render " + i, expected, new Template(tpl.getPath()).parse(data));
+            }
+            ValueFilters.register("upper", (value, out) -> out.write(value.toString().toUpperCase()));
+            ValueWriters.register(Date.class, (date, out) -> out.write("<" + date.getTime() + ">"));
+            data.put("date", new Date(1234567894L));
+            try {
+                assertEquals("", "NOTHING TO ESCAPE", Template.parse("%{plain|upper}", data));
+                assertEquals("", "&lt;1234567894&gt;", Template.parse("%{date|html}", data));
+                expected = Template.parse(text, data);
+                assertTrue(expected, expected.startsWith("NOTHING TO ESCAPE Tom &amp; "));
+                for (int i = 0; i < 3; i++) {
+                    assertEquals("Render " + i, expected, new Template(tpl.getPath()).parse(data));
+                }
+            } finally {
+                ValueFilters.remove("upper");
+                ValueWriters.remove(Date.class);
+            }
+            assertTrue("", new Template(tpl.getPath()).parse(data).startsWith("A | in the name Tom &amp; "));
+        } finally {
+            cache.setPromoteAfter(0);
+            tpl.delete();
+        }
+    }
+
+    @Test
+    public void testNesting() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("a", "A");
+        /*
+        A block that is not included is skipped to its fi#. The extra fi# is
+        ignored and a block without a fi# runs to the end.
+         */
+        assertEquals("", "aef", Template.parse("a%{ifDef#zz}b%{ifDef#a}c%{fi#}d%{fi#}e%{fi#}f", data));
+        assertEquals("", "abcdA", Template.parse("a%{ifDef#a}b%{ifUnDef#zz}c%{fi#}d%{fi#}%{a}", data));
+        assertEquals("", "a", Template.parse("a%{ifUnDef#a}b%{fi#}%{ifDef#zz}c%{a}", data));
+
+        TemplateProgram program = TemplateProgram.compile("%{ifDef#a}%{ifUnDef#b}x%{fi#}%{fi#}".getBytes(StandardCharsets.UTF_8));
+        assertNull("", program.nestingError);
+        assertEquals("", 4, program.jumps[0]);
+        assertEquals("", 3, program.jumps[1]);
+        assertEquals("", "fi# without ifDef# or ifUnDef# at line 2",
+                TemplateProgram.compile("a\n%{fi#}".getBytes(StandardCharsets.UTF_8)).nestingError);
+        assertEquals("", "ifUnDef#b at line 3 without fi#",
+                TemplateProgram.compile("%{ifDef#a}%{fi#}\n\n%{ifUnDef#b}%{ifDef#c}%{fi#}".getBytes(StandardCharsets.UTF_8)).nestingError);
+    }
+
+    @Test
+    public void testSystemPropertySnapshot() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "Jo Bloggs");
+        SystemPropertySnapshot.getInstance().refresh();
+        System.setProperty("example.snapshot", "from the system");
+        try {
+            /*
+            Not seen until the snapshot is refreshed
+             */
+            assertEquals("", "Jo Bloggs {{+++ERROR: 'template?example.snapshot' SUBSTITUTION VAR NOT FOUND +++}}", Template.parse("%{name} %{example.snapshot}", data));
+            SystemPropertySnapshot.getInstance().refresh();
+            assertEquals("", "Jo Bloggs from the system", Template.parse("%{name} %{example.snapshot}", data));
+            data.put("example.snapshot", "from the data");
+            assertEquals("", "Jo Bloggs from the data", Template.parse("%{name} %{example.snapshot}", data));
+            /*
+            Each distinct name has a slot. A program finds the System property
+            of each slot again when the snapshot is refreshed.
+             */
+            TemplateProgram program = TemplateProgram.compile("%{example.snapshot}%{ifDef#name}%{name|html}%{example.snapshot}%{fi#}".getBytes(StandardCharsets.UTF_8));
+            assertEquals("", 2, program.names.length);
+            assertEquals("", 0, program.instructions[0].slot);
+            assertEquals("", 1, program.instructions[1].slot);
+            assertEquals("", 1, program.instructions[2].slot);
+            assertEquals("", 0, program.instructions[3].slot);
+            assertEquals("", -1, program.instructions[4].slot);
+            assertEquals("", "from the system", program.instructions[3].systemValue());
+            System.setProperty("example.snapshot", "changed");
+            assertEquals("", "from the system", program.instructions[3].systemValue());
+            SystemPropertySnapshot.getInstance().refresh();
+            assertEquals("", "changed", program.instructions[0].systemValue());
+            assertNull("", program.instructions[1].systemValue());
+        } finally {
+            System.clearProperty("example.snapshot");
+            SystemPropertySnapshot.getInstance().refresh();
+        }
+    }
+
+    @Test
+    public void testLoadFromStreamReadsFully() {
+        /*
+        A stream that returns a few bytes at a time and never knows how many
+        are available (like a URL or a jar entry).
+         */
+        final byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + (i % 26));
+        }
+        InputStream slow = new ByteArrayInputStream(content) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 777));
+            }
+
+            @Override
+            public synchronized int available() {
+                return 0;
+            }
+        };
+        Template template = new Template("src/test/resources/file_010_1.txt");
+        assertTrue("", Arrays.equals(content, template.loadFromStream(slow, "slow")));
+    }
+
+    @Test
+    public void testLargeTemplate() throws Exception {
+        File file = new File("build/tmp/example_large.txt");
+        file.getParentFile().mkdirs();
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() <= (1 << 21)) {
+            sb.append("Line for %{name}.\n");
+        }
+        sb.append("The End");
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            Map<String, Object> data = new HashMap<>();
+            data.put("name", "Jo");
+            String result = new Template(file.getPath()).parse(data);
+            assertEquals("", sb.toString().replace("%{name}", "Jo"), result);
+        } finally {
+            TemplateCache.getInstance().remove("file:" + file.getAbsolutePath());
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLoadFromStreamOverride() throws Exception {
+        File file = new File("build/tmp/example_hook.txt");
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), "Hello %{name}".getBytes(StandardCharsets.UTF_8));
+        try {
+            /*
+            File templates are loaded through loadFromStream() too
+             */
+            Template template = new Template(file.getPath()) {
+                @Override
+                protected byte[] loadFromStream(InputStream fis, String fileName) {
+                    String text = new String(super.loadFromStream(fis, fileName), StandardCharsets.UTF_8);
+                    return text.replace("Hello", "Hi").getBytes(StandardCharsets.UTF_8);
+                }
+            };
+            Map<String, Object> data = new HashMap<>();
+            data.put("name", "Jo");
+            assertEquals("", "Hi Jo", template.parse(data));
+        } finally {
+            TemplateCache.getInstance().remove(Template.fileLocation(file));
+            file.delete();
+        }
+    }
+
     private String clean(String s) {
         StringBuilder sb = new StringBuilder();
         for (char c:s.toCharArray()) {